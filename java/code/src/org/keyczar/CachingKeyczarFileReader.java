@@ -0,0 +1,268 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import org.apache.log4j.Logger;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.i18n.Messages;
+import org.keyczar.util.Util;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link KeyczarFileReader} that caches the files it reads. The cache is
+ * shared by every caching reader in the process, so building several
+ * Crypters over the same directory reads each file once. A cached file is
+ * reused for as long as its modification time and size are unchanged, which
+ * only costs a stat per read. When they do change, the file is read again and
+ * its contents are kept only if their digest differs, so merely touching a
+ * file doesn't count as a change. The cache holds up to
+ * {@value #MAX_CACHED_FILES} files, dropping the least recently read.
+ *
+ * <p>Modification times are only as fine as the file system keeps them,
+ * often a second or more, so a file rewritten with contents of the same
+ * size within that window can still be read from the cache.
+ * {@link #checkForChanges()} always compares digests, and reads see the new
+ * contents once it has run.
+ *
+ * <p>Cached files are kept as read, so the keys of unencrypted key sets stay
+ * in memory until they are dropped. {@link #evictCachedFiles()} drops the
+ * files a reader has read and {@link #clearCache()} drops them all.
+ *
+ * <p>Readers can also report changes to the files they have read. Listeners
+ * are told about changes found by {@link #checkForChanges()}, which can be
+ * run periodically with {@link #scheduleChangeChecks}. For example, a
+ * listener can call {@link ReloadingCrypter#reload()} so the Crypter picks
+ * up rotated keys as soon as they are seen.
+ */
+public class CachingKeyczarFileReader extends KeyczarFileReader {
+  private static final Logger LOG =
+      Logger.getLogger(CachingKeyczarFileReader.class);
+  // The most files kept in the cache; the least recently read are dropped
+  static final int MAX_CACHED_FILES = 1024;
+  // Keyed by absolute path, in order of last access
+  private static final Map<String, CachedFile> CACHE =
+      Collections.synchronizedMap(new LinkedHashMap<String, CachedFile>(
+          16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<String, CachedFile> eldest) {
+          return size() > MAX_CACHED_FILES;
+        }
+      });
+
+  /**
+   * Receives notifications of changed key set files.
+   */
+  public interface ChangeListener {
+    /**
+     * Called when the metadata or a key file this reader has read changed.
+     */
+    void keySetChanged(CachingKeyczarFileReader reader);
+  }
+
+  private final List<ChangeListener> listeners =
+      new CopyOnWriteArrayList<ChangeListener>();
+  // Digests of the files this reader has handed out, by absolute path
+  private final Map<String, byte[]> readDigests =
+      new ConcurrentHashMap<String, byte[]>();
+  // The metadata getKey() last parsed and the primary version it names,
+  // published together so that they always match
+  private volatile Primary primary;
+
+  private static final class Primary {
+    final String metadata;
+    final int version;
+
+    Primary(String metadata, int version) {
+      this.metadata = metadata;
+      this.version = version;
+    }
+  }
+
+  private static final class CachedFile {
+    final long lastModified;
+    final long length;
+    final String contents;
+    final byte[] digest;
+
+    CachedFile(long lastModified, long length, String contents,
+        byte[] digest) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.contents = contents;
+      this.digest = digest;
+    }
+  }
+
+  public CachingKeyczarFileReader(String fileLocation) {
+    super(fileLocation);
+  }
+
+  @Override
+  public String getKey() throws KeyczarException {
+    String metadata = getMetadata();
+    // An unchanged file is always returned as the same String, so the
+    // metadata only needs parsing again when it changed
+    Primary current = primary;
+    if (current == null || metadata != current.metadata) {
+      current = new Primary(metadata,
+          KeyMetadata.read(metadata).getPrimaryVersion().getVersionNumber());
+      primary = current;
+    }
+    return getKey(current.version);
+  }
+
+  /**
+   * Drops every cached file, so that each is read again the next time it is
+   * needed.
+   */
+  public static void clearCache() {
+    CACHE.clear();
+  }
+
+  /**
+   * Drops the cached copies of the files this reader has read. Changes to
+   * them are still checked for.
+   */
+  public void evictCachedFiles() {
+    for (String path : readDigests.keySet()) {
+      CACHE.remove(path);
+    }
+  }
+
+  @Override
+  String readFile(String filename) throws KeyczarException {
+    CachedFile file = cachedFile(filename, false);
+    readDigests.put(new File(filename).getAbsolutePath(), file.digest);
+    return file.contents;
+  }
+
+  /**
+   * Returns the cached copy of a file, reading it again if its modification
+   * time or size changed since it was cached, or always if verify is set.
+   */
+  private static CachedFile cachedFile(String filename, boolean verify)
+      throws KeyczarException {
+    File file = new File(filename);
+    String path = file.getAbsolutePath();
+    // Stat before reading, so that a change made while reading shows up as a
+    // different modification time or size on the next read
+    long lastModified = file.lastModified();
+    long length = file.length();
+    CachedFile cached = CACHE.get(path);
+    if (!verify && cached != null && lastModified != 0
+        && cached.lastModified == lastModified && cached.length == length) {
+      return cached;
+    }
+
+    byte[] bytes;
+    try {
+      bytes = readFileBytes(filename);
+    } catch (KeyczarException e) {
+      // Don't keep files that are gone
+      CACHE.remove(path);
+      throw e;
+    }
+    byte[] digest = Util.hash(bytes);
+    String contents;
+    if (cached != null && Arrays.equals(cached.digest, digest)) {
+      contents = cached.contents;
+    } else {
+      contents = new String(bytes);
+    }
+    CachedFile updated = new CachedFile(lastModified, length, contents, digest);
+    CACHE.put(path, updated);
+    return updated;
+  }
+
+  public void addChangeListener(ChangeListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeChangeListener(ChangeListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Checks whether any file this reader has read has changed since it was
+   * last read or checked, and notifies the listeners if so. Every file is
+   * read again and compared by digest, so changes that kept the file's
+   * modification time and size are found too. Files that can no longer be
+   * read count as changed and are no longer checked.
+   *
+   * @return Whether anything changed
+   */
+  public boolean checkForChanges() {
+    boolean changed = false;
+    for (Map.Entry<String, byte[]> entry : readDigests.entrySet()) {
+      String path = entry.getKey();
+      try {
+        byte[] digest = cachedFile(path, true).digest;
+        if (!Arrays.equals(digest, entry.getValue())) {
+          readDigests.put(path, digest);
+          changed = true;
+        }
+      } catch (KeyczarException e) {
+        readDigests.remove(path);
+        changed = true;
+      }
+    }
+    if (changed) {
+      LOG.debug(Messages.getString("CachingKeyczarFileReader.Changed",
+          location));
+      for (ChangeListener listener : listeners) {
+        listener.keySetChanged(this);
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Checks for changes at a fixed rate on the given executor.
+   *
+   * @return The future of the scheduled checks, which can be cancelled to
+   * stop them
+   */
+  public ScheduledFuture<?> scheduleChangeChecks(
+      ScheduledExecutorService executor, long period, TimeUnit unit) {
+    return executor.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          checkForChanges();
+        } catch (RuntimeException e) {
+          LOG.warn(Messages.getString("CachingKeyczarFileReader.CheckFailed",
+              location), e);
+        }
+      }
+    }, period, period, unit);
+  }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import org.apache.log4j.Logger;
+import org.keyczar.ParallelTasks.RangeTask;
+import org.keyczar.enums.CipherMode;
+import org.keyczar.exceptions.BadVersionException;
+import org.keyczar.exceptions.InvalidSignatureException;
+import org.keyczar.exceptions.KeyNotFoundException;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.exceptions.NoPrimaryKeyException;
+import org.keyczar.exceptions.ShortCiphertextException;
+import org.keyczar.i18n.Messages;
+import org.keyczar.interfaces.DecryptingStream;
+import org.keyczar.interfaces.EncryptingStream;
+import org.keyczar.interfaces.KeyczarReader;
+import org.keyczar.interfaces.SigningStream;
+import org.keyczar.interfaces.VerifyingStream;
+import org.keyczar.util.Util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Chunked crypters encrypt large payloads as a sequence of independently
+ * authenticated segments, so that the segments can be encrypted and decrypted
+ * in parallel on an ExecutorService. They use the AES keys of a
+ * {@link Crypter} key set, which must be in CBC mode.
+ *
+ * The chunked format is:
+ *   [header | segment 0 | segment 1 | ... | segment n-1]
+ * where the header is:
+ *   [version | key hash | segment size | plaintext length | nonce]
+ * and each segment is:
+ *   [IV | ciphertext | HMAC]
+ *
+ * The HMAC of each segment covers the header, the segment index, the IV and
+ * the ciphertext. Segments therefore can't be reordered, moved to another
+ * message or dropped without failing verification. Every segment holds the
+ * configured segment size of plaintext except the last one, which holds the
+ * remainder.
+ *
+ * Chunked ciphertexts use a different version byte than the regular
+ * ciphertext format, so they are rejected by {@link Crypter#decrypt(byte[])}.
+ */
+public class ChunkedCrypter {
+  private static final Logger LOG = Logger.getLogger(ChunkedCrypter.class);
+  public static final byte CHUNKED_FORMAT_VERSION = 1;
+  public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024;
+  static final int NONCE_SIZE = 16;
+  public static final int CHUNKED_HEADER_SIZE =
+      Keyczar.HEADER_SIZE + 4 + 8 + NONCE_SIZE;
+
+  private final Crypter crypter;
+  private final ExecutorService executor;
+  private volatile int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+  /**
+   * Initialize a new ChunkedCrypter with a KeyczarReader. The corresponding
+   * key set must have a purpose
+   * {@link org.keyczar.enums.KeyPurpose#DECRYPT_AND_ENCRYPT}.
+   *
+   * @param reader A reader to read keys from
+   * @param executor The executor to run segments on, or null to process them
+   * on the calling thread
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   */
+  public ChunkedCrypter(KeyczarReader reader, ExecutorService executor)
+      throws KeyczarException {
+    this(new Crypter(reader), executor);
+  }
+
+  /**
+   * Initialize a new ChunkedCrypter with a key set location. This will
+   * attempt to read the keys using a KeyczarFileReader. The corresponding key
+   * set must have a purpose of
+   * {@link org.keyczar.enums.KeyPurpose#DECRYPT_AND_ENCRYPT}.
+   *
+   * @param fileLocation Directory containing a key set
+   * @param executor The executor to run segments on, or null to process them
+   * on the calling thread
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   */
+  public ChunkedCrypter(String fileLocation, ExecutorService executor)
+      throws KeyczarException {
+    this(new Crypter(fileLocation), executor);
+  }
+
+  /**
+   * Initialize a new ChunkedCrypter with a Crypter object.
+   *
+   * @param crypter Crypter whose keys are used
+   * @param executor The executor to run segments on, or null to process them
+   * on the calling thread
+   */
+  public ChunkedCrypter(Crypter crypter, ExecutorService executor) {
+    this.crypter = crypter;
+    this.executor = executor;
+  }
+
+  /**
+   * Sets the number of plaintext bytes in each segment of new ciphertexts.
+   * Ciphertexts record their segment size, so this doesn't affect decryption.
+   *
+   * @param segmentSize The segment size in bytes, at least 1
+   */
+  public void setSegmentSize(int segmentSize) {
+    if (segmentSize < 1) {
+      throw new IllegalArgumentException(
+          Messages.getString("ChunkedCrypter.BadSegmentSize", segmentSize));
+    }
+    this.segmentSize = segmentSize;
+  }
+
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * Encrypt the given input byte array in the chunked format.
+   *
+   * @param input The input to encrypt
+   * @return The encrypted ciphertext
+   * @throws KeyczarException If there is a JCE exception, the key set does
+   * not contain a primary encrypting key, or the primary key is not an AES key
+   * in CBC mode.
+   */
+  public byte[] encrypt(final byte[] input) throws KeyczarException {
+    final KeyczarKey key = crypter.getPrimaryKey();
+    if (key == null) {
+      throw new NoPrimaryKeyException();
+    }
+    final Layout layout = new Layout(key, segmentSize, input.length);
+    LOG.debug(Messages.getString("ChunkedCrypter.Encrypting", input.length,
+        layout.segmentCount));
+
+    final byte[] output = new byte[layout.ciphertextLength()];
+    ByteBuffer headerBuffer = ByteBuffer.wrap(output, 0, CHUNKED_HEADER_SIZE);
+    headerBuffer.put(CHUNKED_FORMAT_VERSION);
+    headerBuffer.put(key.hash());
+    headerBuffer.putInt(layout.segmentSize);
+    headerBuffer.putLong(input.length);
+    headerBuffer.put(Util.rand(NONCE_SIZE));
+    final byte[] header = new byte[CHUNKED_HEADER_SIZE];
+    System.arraycopy(output, 0, header, 0, CHUNKED_HEADER_SIZE);
+
+    ParallelTasks.run(executor, layout.segmentCount, new RangeTask() {
+      @Override
+      public void run(int from, int to) throws KeyczarException {
+        EncryptingStream cryptStream = (EncryptingStream) key.getStream();
+        try {
+          for (int i = from; i < to; i++) {
+            encryptSegment(cryptStream, layout, header, i, input, output);
+          }
+        } finally {
+          key.releaseStream(cryptStream);
+        }
+      }
+    });
+    return output;
+  }
+
+  /**
+   * Decrypt the given chunked ciphertext.
+   *
+   * @param input The chunked ciphertext
+   * @return The decrypted plaintext
+   * @throws KeyczarException If the input is malformed, a segment signature
+   * does not verify, the decryption key is not found, or a JCE error occurs.
+   */
+  public byte[] decrypt(final byte[] input) throws KeyczarException {
+    if (input.length < CHUNKED_HEADER_SIZE) {
+      throw new ShortCiphertextException(input.length);
+    }
+    ByteBuffer headerBuffer = ByteBuffer.wrap(input, 0, CHUNKED_HEADER_SIZE);
+    byte version = headerBuffer.get();
+    if (version != CHUNKED_FORMAT_VERSION) {
+      throw new BadVersionException(version);
+    }
+    int hash = headerBuffer.getInt();
+    int segmentSize = headerBuffer.getInt();
+    long plaintextLength = headerBuffer.getLong();
+    if (segmentSize < 1 || plaintextLength < 0
+        || plaintextLength > Integer.MAX_VALUE) {
+      throw new InvalidSignatureException();
+    }
+    KeyczarKey[] keys = crypter.getKey(input, 1);
+    if (keys == null) {
+      throw new KeyNotFoundException(hash);
+    }
+    LOG.debug(Messages.getString("Crypter.Decrypting", input.length));
+    final byte[] header = new byte[CHUNKED_HEADER_SIZE];
+    System.arraycopy(input, 0, header, 0, CHUNKED_HEADER_SIZE);
+
+    // Several keys may share a hash identifier, so each one is tried in turn
+    KeyczarException error = null;
+    for (final KeyczarKey key : keys) {
+      try {
+        final Layout layout = new Layout(key, segmentSize, (int) plaintextLength);
+        if (input.length < layout.ciphertextLength()) {
+          throw new ShortCiphertextException(input.length);
+        } else if (input.length > layout.ciphertextLength()) {
+          throw new InvalidSignatureException();
+        }
+        final byte[] output = new byte[(int) plaintextLength];
+        ParallelTasks.run(executor, layout.segmentCount, new RangeTask() {
+          @Override
+          public void run(int from, int to) throws KeyczarException {
+            DecryptingStream cryptStream = (DecryptingStream) key.getStream();
+            try {
+              // The JCE needs room for the padding when decrypting, so each
+              // segment is decrypted into scratch space and then copied.
+              byte[] scratch = new byte[layout.segmentLength(0)];
+              for (int i = from; i < to; i++) {
+                decryptSegment(cryptStream, layout, header, i, input, output,
+                    scratch);
+              }
+            } finally {
+              key.releaseStream(cryptStream);
+            }
+          }
+        });
+        return output;
+      } catch (KeyczarException e) {
+        error = e;
+      }
+    }
+    throw error;
+  }
+
+  private static void encryptSegment(EncryptingStream cryptStream,
+      Layout layout, byte[] header, int index, byte[] input, byte[] output)
+      throws KeyczarException {
+    int outputStart = layout.segmentOffset(index);
+    ByteBuffer inputSegment = ByteBuffer.wrap(input,
+        index * layout.segmentSize, layout.plaintextLength(index));
+    ByteBuffer outputSegment = ByteBuffer.wrap(output, outputStart,
+        layout.segmentLength(index));
+    ByteBuffer outputToSign = outputSegment.duplicate();
+
+    SigningStream signStream = cryptStream.getSigningStream();
+    signStream.initSign();
+    signStream.updateSign(ByteBuffer.wrap(header));
+    signStream.updateSign(ByteBuffer.wrap(Util.fromInt(index)));
+    cryptStream.initEncrypt(outputSegment);
+    cryptStream.doFinalEncrypt(inputSegment, outputSegment);
+    outputToSign.limit(outputSegment.position());
+    signStream.updateSign(outputToSign);
+    signStream.sign(outputSegment);
+  }
+
+  private static void decryptSegment(DecryptingStream cryptStream,
+      Layout layout, byte[] header, int index, byte[] input, byte[] output,
+      byte[] scratch) throws KeyczarException {
+    int inputStart = layout.segmentOffset(index);
+    int signatureStart =
+        inputStart + layout.segmentLength(index) - layout.digestSize;
+
+    VerifyingStream verifyStream = cryptStream.getVerifyingStream();
+    verifyStream.initVerify();
+    verifyStream.updateVerify(ByteBuffer.wrap(header));
+    verifyStream.updateVerify(ByteBuffer.wrap(Util.fromInt(index)));
+    verifyStream.updateVerify(
+        ByteBuffer.wrap(input, inputStart, signatureStart - inputStart));
+    if (!verifyStream.verify(
+        ByteBuffer.wrap(input, signatureStart, layout.digestSize))) {
+      throw new InvalidSignatureException();
+    }
+
+    ByteBuffer inputSegment =
+        ByteBuffer.wrap(input, inputStart, signatureStart - inputStart);
+    ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+    cryptStream.initDecrypt(inputSegment);
+    cryptStream.doFinalDecrypt(inputSegment, scratchBuffer);
+    int plaintextLength = layout.plaintextLength(index);
+    if (scratchBuffer.position() != plaintextLength) {
+      throw new InvalidSignatureException();
+    }
+    System.arraycopy(scratch, 0, output, index * layout.segmentSize,
+        plaintextLength);
+  }
+
+  /**
+   * Sizes and offsets of the segments of one chunked ciphertext. AES in CBC
+   * mode produces exactly {@link EncryptingStream#maxOutputSize(int)} bytes,
+   * so every segment boundary is known up front.
+   */
+  private static final class Layout {
+    private final int segmentSize;
+    private final int segmentCount;
+    private final int lastPlaintextLength;
+    private final int fullSegmentLength;
+    private final int lastSegmentLength;
+    private final int digestSize;
+
+    Layout(KeyczarKey key, int segmentSize, int plaintextLength)
+        throws KeyczarException {
+      if (!(key instanceof AesKey) || ((AesKey) key).getMode() != CipherMode.CBC) {
+        throw new KeyczarException(
+            Messages.getString("ChunkedCrypter.UnsupportedKey"));
+      }
+      this.segmentSize = segmentSize;
+      // An empty plaintext is still encrypted as one empty segment
+      segmentCount = (int) Math.max(1,
+          ((long) plaintextLength + segmentSize - 1) / segmentSize);
+      lastPlaintextLength = plaintextLength - (segmentCount - 1) * segmentSize;
+      EncryptingStream stream = (EncryptingStream) key.getStream();
+      try {
+        digestSize = stream.getSigningStream().digestSize();
+        fullSegmentLength = stream.maxOutputSize(segmentSize) + digestSize;
+        lastSegmentLength = stream.maxOutputSize(lastPlaintextLength) + digestSize;
+      } finally {
+        key.releaseStream(stream);
+      }
+    }
+
+    int ciphertextLength() throws KeyczarException {
+      long length = CHUNKED_HEADER_SIZE
+          + (long) (segmentCount - 1) * fullSegmentLength + lastSegmentLength;
+      if (length > Integer.MAX_VALUE) {
+        throw new KeyczarException(
+            Messages.getString("ChunkedCrypter.TooLarge", length));
+      }
+      return (int) length;
+    }
+
+    int segmentOffset(int index) {
+      return CHUNKED_HEADER_SIZE + index * fullSegmentLength;
+    }
+
+    int segmentLength(int index) {
+      return (index == segmentCount - 1) ? lastSegmentLength : fullSegmentLength;
+    }
+
+    int plaintextLength(int index) {
+      return (index == segmentCount - 1) ? lastPlaintextLength : segmentSize;
+    }
+  }
+}
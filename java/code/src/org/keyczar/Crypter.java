@@ -17,6 +17,7 @@
 package org.keyczar;
 
 import org.apache.log4j.Logger;
+import org.keyczar.ParallelTasks.RangeTask;
 import org.keyczar.enums.KeyPurpose;
 import org.keyczar.exceptions.BadVersionException;
 import org.keyczar.exceptions.InvalidSignatureException;
@@ -28,9 +29,21 @@ import org.keyczar.interfaces.DecryptingStream;
 import org.keyczar.interfaces.KeyczarReader;
 import org.keyczar.interfaces.VerifyingStream;
 import org.keyczar.util.Base64Coder;
+import org.keyczar.util.Util;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.nio.ByteBuffer;
-import java.util.Collection;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Crypters may both encrypt and decrypt data using sets of symmetric or private
@@ -40,7 +53,6 @@ import java.util.Collection;
  *
  */
 public class Crypter extends Encrypter {
-  private static final int DECRYPT_CHUNK_SIZE = 1024;
   private static final Logger LOG = Logger.getLogger(Crypter.class);
 
   /**
@@ -55,6 +67,42 @@ public class Crypter extends Encrypter {
     super(reader);
   }
 
+  /**
+   * Initialize a new Crypter with a KeyczarReader. The corresponding key set
+   * must have a purpose {@link org.keyczar.enums.KeyPurpose#DECRYPT_AND_ENCRYPT}.
+   *
+   * If lazyKeys is set, only the primary key and versions without key hashes
+   * in the metadata are read up front; each other version is read the first
+   * time one of its hashes is used, so the reader must stay usable.
+   *
+   * @param reader A reader to read keys from
+   * @param lazyKeys Whether to defer reading non-primary keys
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   */
+  public Crypter(KeyczarReader reader, boolean lazyKeys)
+      throws KeyczarException {
+    super(reader, lazyKeys);
+  }
+
+  /**
+   * Initialize a new Crypter with a KeyczarReader. The corresponding key set
+   * must have a purpose {@link org.keyczar.enums.KeyPurpose#DECRYPT_AND_ENCRYPT}.
+   *
+   * Keys are parsed concurrently on the given executor, which shortens
+   * loading key sets with many large keys. The result is the same as
+   * loading them one by one.
+   *
+   * @param reader A reader to read keys from
+   * @param executor The executor to parse keys on
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   */
+  public Crypter(KeyczarReader reader, ExecutorService executor)
+      throws KeyczarException {
+    super(reader, executor);
+  }
+
   /**
    * Initialize a new Crypter with a key set location. This will attempt to
    * read the keys using a KeyczarFileReader. The corresponding key set
@@ -79,125 +127,379 @@ public class Crypter extends Encrypter {
    * error occurs.
    */
   public byte[] decrypt(byte[] input) throws KeyczarException {
-    ByteBuffer output = ByteBuffer.allocate(input.length);
-    decrypt(ByteBuffer.wrap(input), output);
-    output.rewind();
-    byte[] outputBytes = new byte[output.remaining()];
-    output.get(outputBytes);
+    byte[] output = new byte[input.length];
+    int outputLength = decrypt(input, 0, input.length, output, 0);
+    byte[] outputBytes = new byte[outputLength];
+    System.arraycopy(output, 0, outputBytes, 0, outputLength);
     return outputBytes;
   }
 
+  /**
+   * Decrypt part of the given input array into the given output array. No
+   * arrays are allocated, so callers that reuse their buffers can decrypt
+   * without creating garbage proportional to the message size. The plaintext
+   * is never longer than the ciphertext, so room for inputLength bytes in the
+   * output is always enough.
+   *
+   * @param input The array holding the ciphertext
+   * @param inputOffset The offset of the ciphertext in the input array
+   * @param inputLength The length of the ciphertext
+   * @param output The array to write the plaintext to
+   * @param outputOffset The offset in the output array to start writing at
+   * @return The number of plaintext bytes written
+   * @throws KeyczarException If the input is malformed, the ciphertext
+   * signature does not verify, the decryption key is not found, the output
+   * is too small, or a JCE error occurs.
+   */
+  public int decrypt(byte[] input, int inputOffset, int inputLength,
+      byte[] output, int outputOffset) throws KeyczarException {
+    ByteBuffer outputBuffer =
+        ByteBuffer.wrap(output, outputOffset, output.length - outputOffset);
+    decrypt(ByteBuffer.wrap(input, inputOffset, inputLength), outputBuffer);
+    return outputBuffer.position() - outputOffset;
+  }
+
   /**
    * Decrypt the given ciphertext input ByteBuffer and write the decrypted
-   * plaintext to the output ByteBuffer
+   * plaintext to the output ByteBuffer.
+   *
+   * The signature over the whole ciphertext is checked before any of it is
+   * decrypted, so forged or corrupted input is rejected without doing any
+   * decryption work. The plaintext is then decrypted in a single pass
+   * directly into the output buffer.
    *
    * @param input The input ciphertext. Will not be modified.
    * @param output The output buffer to write the decrypted plaintext
- * @throws KeyczarException 
+   * @throws KeyczarException If the input is malformed, the ciphertext
+   * signature does not verify, the decryption key is not found, or a JCE
+   * error occurs.
    */
   public void decrypt(ByteBuffer input, ByteBuffer output)
       throws KeyczarException {
-    ByteBuffer inputCopy = input.asReadOnlyBuffer();
-    LOG.debug(Messages.getString("Crypter.Decrypting", inputCopy.remaining()));
-    if (inputCopy.remaining() < HEADER_SIZE) {
-      throw new ShortCiphertextException(inputCopy.remaining());
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(Messages.getString("Crypter.Decrypting", input.remaining()));
+    }
+    KeyczarKey[] keys = getKeys(input);
+    KeyczarException error = null;
+
+    // Several keys may share a hash identifier. Only the one whose signature
+    // verifies is used to decrypt, so no temporary output buffer is needed.
+    for (KeyczarKey key : keys) {
+      DecryptingStream cryptStream = (DecryptingStream) key.getStream();
+      try {
+        decrypt(cryptStream, input, output);
+        return;
+      } catch (KeyczarException e) {
+        error = e;
+      } finally {
+        key.releaseStream(cryptStream);
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /**
+   * Decrypt a batch of ciphertexts.
+   *
+   * @param inputs The ciphertexts to decrypt
+   * @return The plaintexts, in the same order as the ciphertexts
+   * @throws KeyczarException If any ciphertext is malformed, its signature
+   * does not verify, or its key is not found, or a JCE error occurs.
+   * @see #decryptBatch(List, ExecutorService)
+   */
+  public List<byte[]> decryptBatch(List<byte[]> inputs)
+      throws KeyczarException {
+    return decryptBatch(inputs, null);
+  }
+
+  /**
+   * Decrypt a batch of ciphertexts, optionally spread across an executor.
+   * The headers are parsed up front and the ciphertexts grouped by the keys
+   * their hash identifiers map to. Each group is then decrypted in ranges that
+   * check out one stream per key and reuse it for the whole range, so rows
+   * encrypted under a handful of rotated key versions only pay for a handful
+   * of key lookups and stream checkouts.
+   *
+   * @param inputs The ciphertexts to decrypt
+   * @param executor The executor to spread each group across, or null to
+   * decrypt the batch on the calling thread
+   * @return The plaintexts, in the same order as the ciphertexts
+   * @throws KeyczarException If any ciphertext is malformed, its signature
+   * does not verify, or its key is not found, or a JCE error occurs.
+   */
+  public List<byte[]> decryptBatch(final List<byte[]> inputs,
+      ExecutorService executor) throws KeyczarException {
+    // getKey() returns the same array for every lookup of a hash, so the
+    // arrays themselves identify the groups.
+    Map<KeyczarKey[], List<Integer>> groups =
+        new IdentityHashMap<KeyczarKey[], List<Integer>>();
+    for (int i = 0; i < inputs.size(); i++) {
+      KeyczarKey[] keys = getKeys(ByteBuffer.wrap(inputs.get(i)));
+      List<Integer> group = groups.get(keys);
+      if (group == null) {
+        group = new ArrayList<Integer>();
+        groups.put(keys, group);
+      }
+      group.add(i);
+    }
+
+    final byte[][] outputs = new byte[inputs.size()][];
+    for (Map.Entry<KeyczarKey[], List<Integer>> entry : groups.entrySet()) {
+      final KeyczarKey[] keys = entry.getKey();
+      final List<Integer> group = entry.getValue();
+      ParallelTasks.run(executor, group.size(), new RangeTask() {
+        @Override
+        public void run(int from, int to) throws KeyczarException {
+          decryptRange(keys, inputs, group.subList(from, to), outputs);
+        }
+      });
+    }
+    return Arrays.asList(outputs);
+  }
+
+  /**
+   * Decrypts the given rows of a batch, checking out at most one stream per
+   * candidate key for all of them.
+   */
+  private void decryptRange(KeyczarKey[] keys, List<byte[]> inputs,
+      List<Integer> rows, byte[][] outputs) throws KeyczarException {
+    DecryptingStream[] streams = new DecryptingStream[keys.length];
+    byte[] scratch = new byte[0];
+    try {
+      for (int row : rows) {
+        byte[] input = inputs.get(row);
+        if (scratch.length < input.length) {
+          scratch = new byte[input.length];
+        }
+        ByteBuffer output = ByteBuffer.wrap(scratch);
+        KeyczarException error = null;
+        for (int k = 0; k < keys.length; k++) {
+          if (streams[k] == null) {
+            streams[k] = (DecryptingStream) keys[k].getStream();
+          }
+          try {
+            decrypt(streams[k], ByteBuffer.wrap(input), output);
+            error = null;
+            break;
+          } catch (KeyczarException e) {
+            error = e;
+          }
+        }
+        if (error != null) {
+          throw error;
+        }
+        byte[] plaintext = new byte[output.position()];
+        System.arraycopy(scratch, 0, plaintext, 0, plaintext.length);
+        outputs[row] = plaintext;
+      }
+    } finally {
+      for (int k = 0; k < keys.length; k++) {
+        if (streams[k] != null) {
+          keys[k].releaseStream(streams[k]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Parses the header of the given ciphertext, without modifying it, and
+   * returns the keys that match its hash identifier.
+   */
+  private KeyczarKey[] getKeys(ByteBuffer input) throws KeyczarException {
+    if (input.remaining() < HEADER_SIZE) {
+      throw new ShortCiphertextException(input.remaining());
     }
-    byte version = inputCopy.get();
+    byte version = input.get(input.position());
     if (version != FORMAT_VERSION) {
       throw new BadVersionException(version);
     }
 
-    byte[] hash = new byte[KEY_HASH_SIZE];
-    inputCopy.get(hash);
-    Collection<KeyczarKey> keys = getKey(hash);
+    KeyczarKey[] keys = getKey(input, input.position() + 1);
     if (keys == null) {
-      throw new KeyNotFoundException(hash);
+      throw new KeyNotFoundException(
+          Util.readInt(input, input.position() + 1));
     }
+    return keys;
+  }
 
-    // The input to decrypt is now positioned at the start of the ciphertext
-    inputCopy.mark();
+  /**
+   * Verifies and decrypts a whole ciphertext, header included, with the
+   * given stream. The signature over the header, IV and ciphertext is checked
+   * before anything is decrypted. If the signature doesn't verify or the
+   * decryption fails, the output buffer is left as it was.
+   */
+  private void decrypt(DecryptingStream cryptStream, ByteBuffer input,
+      ByteBuffer output) throws KeyczarException {
+    ByteBuffer inputCopy = input.duplicate();
+    int ciphertextStart = inputCopy.position() + HEADER_SIZE;
     int inputLimit = inputCopy.limit();
-    KeyczarException error = null;
+    int outputStart = output.position();
+    int outputLimit = output.limit();
+    try {
+      VerifyingStream verifyStream = cryptStream.getVerifyingStream();
+      int digestSize = verifyStream.digestSize();
+      if (inputLimit - ciphertextStart < digestSize) {
+        throw new ShortCiphertextException(inputLimit - ciphertextStart);
+      }
+      int signatureStart = inputLimit - digestSize;
 
-    boolean collision = keys.size() > 1;
-    
-  for (KeyczarKey key : keys) {
-    error = null;
+      // Verify the header, IV and ciphertext in one pass
+      ByteBuffer signedData = input.duplicate();
+      signedData.limit(signatureStart);
+      verifyStream.initVerify();
+      verifyStream.updateVerify(signedData);
+      inputCopy.position(signatureStart);
+      if (!verifyStream.verify(inputCopy)) {
+        throw new InvalidSignatureException();
+      }
 
-      ByteBuffer tempBuffer = output;
-      if (collision) {
-        tempBuffer = ByteBuffer.allocate(output.capacity());
+      // Initialize the crypt stream, which may read an IV, and decrypt the
+      // rest of the ciphertext straight into the output.
+      inputCopy.limit(signatureStart);
+      inputCopy.position(ciphertextStart);
+      output.mark();
+      cryptStream.initDecrypt(inputCopy);
+      cryptStream.doFinalDecrypt(inputCopy, output);
+      output.limit(output.position());
+    } catch (Exception e) {
+      output.limit(outputLimit);
+      output.position(outputStart);
+      if (e instanceof KeyczarException) {
+        throw (KeyczarException) e;
       }
+      LOG.debug(e.getMessage(), e);
+      throw new InvalidSignatureException();
+    }
+  }
 
-      DecryptingStream cryptStream = (DecryptingStream) key.getStream();
-      
+  /**
+   * Decrypt the ciphertext in the input channel, from its current position to
+   * its end, and write the plaintext to the output channel at its current
+   * position. Both files are memory mapped and the plaintext is written
+   * straight into the mapped output, so no copies are made on the heap. On
+   * return both channels are positioned after the bytes they have consumed or
+   * written.
+   *
+   * @param input The channel to read ciphertext from
+   * @param output The channel to write plaintext to. Must be open for reading
+   * and writing in order to be mapped.
+   * @return The number of plaintext bytes written
+   * @throws KeyczarException If the input is malformed or too large, the
+   * ciphertext signature does not verify, the decryption key is not found, or
+   * an IO or JCE error occurs.
+   */
+  public int decrypt(FileChannel input, FileChannel output)
+      throws KeyczarException {
+    try {
+      long inputStart = input.position();
+      long inputLength = input.size() - inputStart;
+      if (inputLength > Integer.MAX_VALUE) {
+        throw new KeyczarException(
+            Messages.getString("Keyczar.FileTooLarge", inputLength));
+      }
+      MappedByteBuffer inputBuffer =
+          input.map(FileChannel.MapMode.READ_ONLY, inputStart, inputLength);
+      long outputStart = output.position();
+      long outputSize = output.size();
+      boolean finished = false;
       try {
-
-        VerifyingStream verifyStream = cryptStream.getVerifyingStream();
-        if (inputCopy.remaining() < verifyStream.digestSize()) {
-          throw new ShortCiphertextException(inputCopy.remaining());
-        }
-    
-        // Slice off the signature into another buffer
-        inputCopy.position(inputCopy.limit() - verifyStream.digestSize());
-        ByteBuffer signature = inputCopy.slice();
-
-        // Reset the position of the input to start of the ciphertext
-        inputCopy.reset();
-        inputCopy.limit(inputLimit - verifyStream.digestSize());
-
-        // Initialize the crypt stream. This may read an IV if any.
-        cryptStream.initDecrypt(inputCopy);
-
-        // Verify the header and IV if any
-        ByteBuffer headerAndIvToVerify = input.asReadOnlyBuffer();
-        headerAndIvToVerify.limit(inputCopy.position());
-        verifyStream.initVerify();
-        verifyStream.updateVerify(headerAndIvToVerify);
-        tempBuffer.mark();
-
-        // This will process large input in chunks, rather than all at once. This
-        // avoids making two passes through memory.
-        while (inputCopy.remaining() > DECRYPT_CHUNK_SIZE) {
-          ByteBuffer ciphertextChunk = inputCopy.slice();
-          ciphertextChunk.limit(DECRYPT_CHUNK_SIZE);
-          cryptStream.updateDecrypt(ciphertextChunk, tempBuffer);
-          ciphertextChunk.rewind();
-          verifyStream.updateVerify(ciphertextChunk);
-          inputCopy.position(inputCopy.position() + DECRYPT_CHUNK_SIZE);
+        // The plaintext is never longer than the ciphertext
+        MappedByteBuffer outputBuffer = output.map(
+            FileChannel.MapMode.READ_WRITE, outputStart, inputLength);
+        decrypt(inputBuffer, outputBuffer);
+        int written = outputBuffer.position();
+        input.position(inputStart + inputLength);
+        finishMappedOutput(output, outputSize, outputStart + written);
+        finished = true;
+        return written;
+      } finally {
+        if (!finished) {
+          discardMappedOutput(output, outputSize, outputStart);
         }
-        int lastBlock = inputCopy.position();
-        verifyStream.updateVerify(inputCopy);
-        if (!verifyStream.verify(signature)) {
-          throw new InvalidSignatureException();
+      }
+    } catch (IOException e) {
+      throw new KeyczarException(e);
+    }
+  }
+
+  /**
+   * Returns an InputStream that decrypts the ciphertext read from the given
+   * stream. The header is read before this returns; the rest of the input is
+   * read and decrypted one chunk at a time as the returned stream is read.
+   *
+   * The signature trails the ciphertext, so it can only be checked once the
+   * end of the input is reached. The returned stream must be read to the end,
+   * and everything read from it discarded if it throws an exception.
+   *
+   * @param input The stream to read ciphertext from. It is closed when the
+   * returned stream is closed.
+   * @return A stream to read the plaintext from
+   * @throws KeyczarException If the header is malformed or can't be read, the
+   * decryption key is not found, or a JCE error occurs.
+   * @see DecryptingInputStream
+   */
+  public DecryptingInputStream decryptingInputStream(InputStream input)
+      throws KeyczarException {
+    byte[] header = new byte[HEADER_SIZE];
+    try {
+      int headerLength = 0;
+      while (headerLength < HEADER_SIZE) {
+        int read = input.read(header, headerLength, HEADER_SIZE - headerLength);
+        if (read < 0) {
+          throw new ShortCiphertextException(headerLength);
         }
+        headerLength += read;
+      }
+    } catch (IOException e) {
+      throw new KeyczarException(e);
+    }
+    if (header[0] != FORMAT_VERSION) {
+      throw new BadVersionException(header[0]);
+    }
 
-        inputCopy.position(lastBlock);
-        cryptStream.doFinalDecrypt(inputCopy, tempBuffer);
-        tempBuffer.limit(tempBuffer.position());
+    KeyczarKey[] keys = getKey(header, 1);
+    if (keys == null) {
+      throw new KeyNotFoundException(Util.readInt(header, 1));
+    }
+    KeyczarKey key = keys[0];
+    if (keys.length > 1) {
+      // The signature that tells keys with the same hash apart trails the
+      // ciphertext, so the rest of the input is read to find the right key.
+      // Hash collisions are rare enough for this not to matter.
+      byte[] body;
+      try {
+        body = Util.readStreamFully(input);
+      } catch (IOException e) {
+        throw new KeyczarException(e);
+      }
+      key = findDecryptingKey(keys, Util.cat(header, body));
+      input = new SequenceInputStream(new ByteArrayInputStream(body), input);
+    }
+    return new DecryptingInputStream(key, header, input, getChunkSize());
+  }
 
-        if (collision) {
-          //Success copy to final output buffer
-          tempBuffer.rewind();
-          output.put(tempBuffer);
-          output.limit(output.position());
-        }
-        return;
-      } catch (Exception e) {
-        if (e instanceof KeyczarException) {
-          error = (KeyczarException) e;
-        } else {
-          LOG.debug(e.getMessage(), e);
-          error = new InvalidSignatureException();
-        }
+  /**
+   * Returns the first of the given keys that verifies and decrypts the whole
+   * ciphertext, as {@link #decrypt(ByteBuffer, ByteBuffer)} would use.
+   */
+  private KeyczarKey findDecryptingKey(KeyczarKey[] keys, byte[] ciphertext)
+      throws KeyczarException {
+    ByteBuffer scratch = ByteBuffer.allocate(ciphertext.length);
+    KeyczarException error = null;
+    for (KeyczarKey key : keys) {
+      DecryptingStream cryptStream = (DecryptingStream) key.getStream();
+      try {
+        decrypt(cryptStream, ByteBuffer.wrap(ciphertext), scratch);
+        return key;
+      } catch (KeyczarException e) {
+        error = e;
       } finally {
-        inputCopy.reset();
-        inputCopy.limit(inputLimit);
+        key.releaseStream(cryptStream);
       }
     }
-    if (error != null) {
-      throw error;
-    }
+    throw error;
   }
 
   /**
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import org.keyczar.exceptions.InvalidSignatureException;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.exceptions.ShortCiphertextException;
+import org.keyczar.interfaces.DecryptingStream;
+import org.keyczar.interfaces.VerifyingStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream that reads ciphertext in the format produced by
+ * {@link Encrypter#encrypt(byte[])} from an underlying InputStream and returns
+ * the decrypted plaintext.
+ *
+ * The signature trails the ciphertext, so the last bytes read from the
+ * underlying stream are always held back until the end of the input is
+ * reached. The signature is then checked before the final chunk of plaintext
+ * is released, and a mismatch is reported as an IOException caused by an
+ * {@link InvalidSignatureException}. Plaintext returned before that point has
+ * not been authenticated yet: callers must read the stream to its end and
+ * discard everything they read if an exception is thrown.
+ *
+ * Instances are created by {@link Crypter#decryptingInputStream} and are not
+ * thread safe. If several keys share the hash identifier in the header, the
+ * whole input is read before the stream is returned, to find the key whose
+ * signature verifies.
+ */
+public class DecryptingInputStream extends InputStream {
+  // Room for blocks that the cipher holds back between calls
+  private static final int MIN_SLACK = 64;
+
+  private final InputStream in;
+  private final DecryptingStream cryptStream;
+  private final VerifyingStream verifyStream;
+  private final int digestSize;
+  private final byte[] ciphertext;
+  private int ciphertextLength = 0;
+  private ByteBuffer plaintext;
+  private long bufferedInCipher = 0;
+  private boolean initialized = false;
+  private boolean finished = false;
+  private final byte[] singleByte = new byte[1];
+
+  DecryptingInputStream(KeyczarKey key, byte[] header, InputStream in,
+      int chunkSize) throws KeyczarException {
+    this.in = in;
+    chunkSize = Math.max(chunkSize, EncryptingOutputStream.MIN_BUFFER_SIZE);
+    // The stream is held until this is closed, so it isn't shared through the
+    // key's stream cache.
+    this.cryptStream = (DecryptingStream) key.createStream();
+    this.verifyStream = cryptStream.getVerifyingStream();
+    this.digestSize = verifyStream.digestSize();
+    this.ciphertext = new byte[chunkSize + digestSize];
+    this.plaintext = ByteBuffer.allocate(chunkSize + MIN_SLACK);
+    plaintext.limit(0);
+
+    verifyStream.initVerify();
+    verifyStream.updateVerify(ByteBuffer.wrap(header));
+  }
+
+  @Override
+  public int read() throws IOException {
+    int read = read(singleByte, 0, 1);
+    return (read < 0) ? -1 : (singleByte[0] & 0xFF);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (!plaintext.hasRemaining()) {
+      if (finished) {
+        return -1;
+      }
+      try {
+        decryptNextChunk();
+      } catch (KeyczarException e) {
+        finished = true;
+        plaintext.limit(0);
+        throw asIOException(e);
+      }
+    }
+    int read = Math.min(len, plaintext.remaining());
+    plaintext.get(b, off, read);
+    return read;
+  }
+
+  @Override
+  public int available() {
+    return plaintext.remaining();
+  }
+
+  @Override
+  public void close() throws IOException {
+    finished = true;
+    in.close();
+  }
+
+  /**
+   * Fills the ciphertext buffer and decrypts all of it except the trailing
+   * bytes that might be the signature.
+   */
+  private void decryptNextChunk() throws IOException, KeyczarException {
+    boolean endOfInput = false;
+    while (ciphertextLength < ciphertext.length) {
+      int read = in.read(ciphertext, ciphertextLength,
+          ciphertext.length - ciphertextLength);
+      if (read < 0) {
+        endOfInput = true;
+        break;
+      }
+      ciphertextLength += read;
+    }
+    if (ciphertextLength < digestSize) {
+      throw new ShortCiphertextException(ciphertextLength);
+    }
+
+    int dataLength = ciphertextLength - digestSize;
+    ByteBuffer data = ByteBuffer.wrap(ciphertext, 0, dataLength);
+    verifyStream.updateVerify(data.duplicate());
+    if (endOfInput && !verifyStream.verify(
+        ByteBuffer.wrap(ciphertext, dataLength, digestSize))) {
+      throw new InvalidSignatureException();
+    }
+
+    if (!initialized) {
+      // The first chunk is either full or the whole input, so the IV is in it
+      try {
+        cryptStream.initDecrypt(data);
+      } catch (BufferUnderflowException e) {
+        throw new ShortCiphertextException(dataLength);
+      }
+      initialized = true;
+    }
+    int inputLength = data.remaining();
+    ensurePlaintextCapacity(inputLength);
+    int written = endOfInput ? cryptStream.doFinalDecrypt(data, plaintext)
+        : cryptStream.updateDecrypt(data, plaintext);
+    bufferedInCipher += inputLength - written;
+    plaintext.flip();
+
+    if (endOfInput) {
+      finished = true;
+    } else {
+      System.arraycopy(ciphertext, dataLength, ciphertext, 0, digestSize);
+      ciphertextLength = digestSize;
+    }
+  }
+
+  /**
+   * Clears the plaintext buffer, growing it if the cipher could release more
+   * than fits. This only happens for ciphers that hold back more than a
+   * block, such as GCM decryption in the JCE.
+   */
+  private void ensurePlaintextCapacity(int inputLength) {
+    long needed = bufferedInCipher + inputLength + MIN_SLACK;
+    if (needed > plaintext.capacity()) {
+      plaintext = ByteBuffer.allocate((int) Math.min(needed, Integer.MAX_VALUE));
+    } else {
+      plaintext.clear();
+    }
+  }
+
+  static IOException asIOException(KeyczarException e) {
+    IOException ioe = new IOException(e.getMessage());
+    ioe.initCause(e);
+    return ioe;
+  }
+}
@@ -16,12 +16,16 @@
 
 package org.keyczar;
 
+import org.keyczar.enums.CipherMode;
+import org.keyczar.enums.HmacDigest;
 import org.keyczar.enums.RsaPadding;
 import org.keyczar.exceptions.KeyczarException;
 import org.keyczar.exceptions.UnsupportedTypeException;
 import org.keyczar.i18n.Messages;
 import org.keyczar.interfaces.KeyType;
 import org.keyczar.keyparams.AesKeyParameters;
+import org.keyczar.keyparams.AesModeKeyParameters;
+import org.keyczar.keyparams.HmacKeyParameters;
 import org.keyczar.keyparams.KeyParameters;
 import org.keyczar.keyparams.RsaKeyParameters;
 
@@ -34,6 +38,9 @@ import java.util.List;
  * <ul>
  *   <li>AES:         ((128, 192, 256), 0)
  *   <li>HMAC-SHA1:   (256, 20)
+ *   <li>HMAC-SHA256: ((256, 512), 32)
+ *   <li>HMAC-SHA384: ((384, 1024), 48)
+ *   <li>HMAC-SHA512: ((512, 1024), 64)
  *   <li>DSA Private: (1024, 48)
  *   <li>DSA Public:  (1024, 48)
  *   <li>RSA Private: ((4096, 2048, 1024), 256)
@@ -47,10 +54,16 @@ import java.util.List;
  * <ul>
  *   <li>"AES"
  *   <li>"HMAC_SHA1"
+ *   <li>"HMAC_SHA256"
+ *   <li>"HMAC_SHA384"
+ *   <li>"HMAC_SHA512"
  *   <li>"DSA_PRIV"
  *   <li>"DSA_PUB"
  * </ul>
  *
+ * HMAC keys may truncate their MACs to as little as half of the output sizes
+ * listed above.
+ *
  * Using the default key types is strongly encouraged.
  *
  * @author steveweis@gmail.com (Steve Weis)
@@ -60,6 +73,9 @@ import java.util.List;
 public enum DefaultKeyType implements KeyType {
   AES(Arrays.asList(128, 192, 256)),
   HMAC_SHA1(Arrays.asList(256)),
+  HMAC_SHA256(Arrays.asList(256, 512)),
+  HMAC_SHA384(Arrays.asList(384, 1024)),
+  HMAC_SHA512(Arrays.asList(512, 1024)),
   DSA_PRIV(Arrays.asList(1024)),
   DSA_PUB(Arrays.asList(1024)),
   RSA_PRIV(Arrays.asList(4096, 2048, 1024, 512)),
@@ -125,11 +141,29 @@ public enum DefaultKeyType implements KeyType {
         return new DefaultingRsaKeyParameters(parameters);
       case AES:
         return new DefaultingAesKeyParameters(parameters);
+      case HMAC_SHA1: case HMAC_SHA256: case HMAC_SHA384: case HMAC_SHA512:
+        return new DefaultingHmacKeyParameters(parameters);
       default:
         return new DefaultingKeyParameters(parameters);
     }
   }
 
+  /**
+   * Returns the digest used by keys of this HMAC type.
+   */
+  private HmacDigest getHmacDigest() {
+    switch (this) {
+      case HMAC_SHA256:
+        return HmacDigest.SHA256;
+      case HMAC_SHA384:
+        return HmacDigest.SHA384;
+      case HMAC_SHA512:
+        return HmacDigest.SHA512;
+      default:
+        return HmacDigest.SHA1;
+    }
+  }
+
   boolean isAcceptableSize(int size) {
     return acceptableSizes.contains(size);
   }
@@ -162,7 +196,7 @@ public enum DefaultKeyType implements KeyType {
   }
 
   private class DefaultingAesKeyParameters extends DefaultingKeyParameters
-      implements AesKeyParameters {
+      implements AesModeKeyParameters {
 
     public DefaultingAesKeyParameters(KeyParameters baseParameters) {
       super(baseParameters);
@@ -170,8 +204,38 @@ public enum DefaultKeyType implements KeyType {
 
     @Override
     public HmacKey getHmacKey() throws KeyczarException {
+      if (baseParameters instanceof AesKeyParameters) {
+        HmacKey hmacKey = ((AesKeyParameters) baseParameters).getHmacKey();
+        if (hmacKey != null) {
+          return hmacKey;
+        }
+      }
       return HmacKey.generate(HMAC_SHA1.applyDefaultParameters(null));
     }
+
+    @Override
+    public CipherMode getCipherMode() throws KeyczarException {
+      if (baseParameters instanceof AesModeKeyParameters) {
+        return ((AesModeKeyParameters) baseParameters).getCipherMode();
+      }
+      return null;
+    }
+  }
+
+  private final class DefaultingHmacKeyParameters
+      extends DefaultingKeyParameters implements HmacKeyParameters {
+
+    public DefaultingHmacKeyParameters(KeyParameters baseParameters) {
+      super(baseParameters);
+    }
+
+    @Override
+    public int getTagSize() throws KeyczarException {
+      if (baseParameters instanceof HmacKeyParameters) {
+        return ((HmacKeyParameters) baseParameters).getTagSize();
+      }
+      return -1;
+    }
   }
 
   private final class DefaultingRsaKeyParameters extends DefaultingKeyParameters
@@ -201,8 +265,13 @@ public enum DefaultKeyType implements KeyType {
       switch (DefaultKeyType.this) {
         case AES:
           return AesKey.read(key);
-        case HMAC_SHA1:
-          return HmacKey.read(key);
+        case HMAC_SHA1: case HMAC_SHA256: case HMAC_SHA384: case HMAC_SHA512:
+          HmacKey hmacKey = HmacKey.read(key);
+          if (hmacKey.getType() != DefaultKeyType.this) {
+            throw new KeyczarException(Messages.getString(
+                "InvalidTypeInInput", hmacKey.getDigest()));
+          }
+          return hmacKey;
         case DSA_PRIV:
           return DsaPrivateKey.read(key);
         case DSA_PUB:
@@ -228,8 +297,8 @@ public enum DefaultKeyType implements KeyType {
       switch (DefaultKeyType.this) {
         case AES:
           return AesKey.generate((AesKeyParameters) params);
-        case HMAC_SHA1:
-          return HmacKey.generate(params);
+        case HMAC_SHA1: case HMAC_SHA256: case HMAC_SHA384: case HMAC_SHA512:
+          return HmacKey.generate(params, getHmacDigest());
         case DSA_PRIV:
           return DsaPrivateKey.generate(params);
         case RSA_PRIV:
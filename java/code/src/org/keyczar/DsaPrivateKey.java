@@ -17,6 +17,8 @@
 package org.keyczar;
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 
 import org.keyczar.exceptions.KeyczarException;
@@ -29,6 +31,7 @@ import org.keyczar.util.Base64Coder;
 import org.keyczar.util.Util;
 
 import java.math.BigInteger;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
@@ -53,13 +56,52 @@ public class DsaPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
 
   private DSAPrivateKey jcePrivateKey;
 
+  static final JsonCodec<DsaPrivateKey> JSON_CODEC =
+      new JsonCodec<DsaPrivateKey>() {
+    @Override
+    DsaPrivateKey read(JsonReader in) throws IOException {
+      DsaPublicKey publicKey = null;
+      String x = null;
+      int size = 0;
+      in.beginObject();
+      while (in.hasNext()) {
+        String name = in.nextName();
+        if (name.equals("publicKey")) {
+          publicKey = nextValue(in, DsaPublicKey.JSON_CODEC);
+        } else if (name.equals("x")) {
+          x = nextString(in);
+        } else if (name.equals("size")) {
+          size = in.nextInt();
+        } else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return new DsaPrivateKey(size, publicKey, x);
+    }
+
+    @Override
+    void write(JsonWriter out, DsaPrivateKey key) throws IOException {
+      out.beginObject();
+      writeValue(out, "publicKey", key.publicKey, DsaPublicKey.JSON_CODEC);
+      writeString(out, "x", key.x);
+      out.name("size").value(key.size);
+      out.endObject();
+    }
+  };
+
   static DsaPrivateKey generate(KeyParameters params) throws KeyczarException {
     return new DsaPrivateKey(
         (DSAPrivateKey) Util.generateKeyPair(KEY_GEN_ALGORITHM, params.getKeySize()).getPrivate());
   }
 
+  @Override
+  public String toString() {
+    return JSON_CODEC.encode(this);
+  }
+
   static DsaPrivateKey read(String input) throws KeyczarException {
-    DsaPrivateKey key = Util.gson().fromJson(input, DsaPrivateKey.class);
+    DsaPrivateKey key = JSON_CODEC.decode(input);
     return key.initFromJson();
   }
 
@@ -70,11 +112,11 @@ public class DsaPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
     x = Base64Coder.encodeWebSafe(jcePrivateKey.getX().toByteArray());
   }
 
-  // Used by GSON, which will overwrite the values set here.
-  private DsaPrivateKey() {
-    super(0);
-    publicKey = null;
-    x = null;
+  // Used when reading from JSON, which initializes the JCE key afterwards
+  private DsaPrivateKey(int size, DsaPublicKey publicKey, String x) {
+    super(size);
+    this.publicKey = publicKey;
+    this.x = x;
   }
 
   @Override
@@ -97,11 +139,8 @@ public class DsaPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
   }
 
   @Override
-  protected Stream getStream() throws KeyczarException {
-    if (cachedStream == null) {
-      cachedStream = new DsaSigningStream();
-    }
-    return cachedStream;
+  protected Stream createStream() throws KeyczarException {
+    return new DsaSigningStream();
   }
 
   @Override
@@ -141,7 +180,7 @@ public class DsaPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
     public DsaSigningStream() throws KeyczarException {
       try {
         signature = Signature.getInstance(SIG_ALGORITHM);
-        verifyingStream = (VerifyingStream) publicKey.getStream();
+        verifyingStream = (VerifyingStream) publicKey.createStream();
       } catch (GeneralSecurityException e) {
         throw new KeyczarException(e);
       }
@@ -17,6 +17,8 @@
 package org.keyczar;
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 
 import org.keyczar.exceptions.KeyczarException;
@@ -27,6 +29,7 @@ import org.keyczar.util.Base64Coder;
 import org.keyczar.util.Util;
 
 import java.math.BigInteger;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
@@ -56,8 +59,55 @@ public class DsaPublicKey extends KeyczarPublicKey {
   @Expose final String q;
   @Expose final String g;
 
+  static final JsonCodec<DsaPublicKey> JSON_CODEC =
+      new JsonCodec<DsaPublicKey>() {
+    @Override
+    DsaPublicKey read(JsonReader in) throws IOException {
+      String y = null;
+      String p = null;
+      String q = null;
+      String g = null;
+      int size = 0;
+      in.beginObject();
+      while (in.hasNext()) {
+        String name = in.nextName();
+        if (name.equals("y")) {
+          y = nextString(in);
+        } else if (name.equals("p")) {
+          p = nextString(in);
+        } else if (name.equals("q")) {
+          q = nextString(in);
+        } else if (name.equals("g")) {
+          g = nextString(in);
+        } else if (name.equals("size")) {
+          size = in.nextInt();
+        } else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return new DsaPublicKey(size, y, p, q, g);
+    }
+
+    @Override
+    void write(JsonWriter out, DsaPublicKey key) throws IOException {
+      out.beginObject();
+      writeString(out, "y", key.y);
+      writeString(out, "p", key.p);
+      writeString(out, "q", key.q);
+      writeString(out, "g", key.g);
+      out.name("size").value(key.size);
+      out.endObject();
+    }
+  };
+
+  @Override
+  public String toString() {
+    return JSON_CODEC.encode(this);
+  }
+
   static DsaPublicKey read(String input) throws KeyczarException {
-    DsaPublicKey key = Util.gson().fromJson(input, DsaPublicKey.class);
+    DsaPublicKey key = JSON_CODEC.decode(input);
     key.initFromJson();
     return key;
   }
@@ -76,11 +126,14 @@ public class DsaPublicKey extends KeyczarPublicKey {
     this(computeY(jcePrivateKey), jcePrivateKey.getParams());
   }
 
-  // Used by GSON, which will overwrite the values set here.
-  private DsaPublicKey() {
-    super(0);
+  // Used when reading from JSON, which initializes the JCE key afterwards
+  private DsaPublicKey(int size, String y, String p, String q, String g) {
+    super(size);
     jcePublicKey = null;
-    y = p = q = g = null;
+    this.y = y;
+    this.p = p;
+    this.q = q;
+    this.g = g;
   }
 
   private DsaPublicKey(BigInteger yVal, DSAParams params) throws KeyczarException {
@@ -105,11 +158,8 @@ public class DsaPublicKey extends KeyczarPublicKey {
 
 
   @Override
-  protected Stream getStream() throws KeyczarException {
-    if (cachedStream == null) {
-      cachedStream = new DsaVerifyingStream();
-    }
-    return cachedStream;
+  protected Stream createStream() throws KeyczarException {
+    return new DsaVerifyingStream();
   }
 
   @Override
@@ -208,8 +258,7 @@ public class DsaPublicKey extends KeyczarPublicKey {
     @Override
     public boolean verify(ByteBuffer sig) throws KeyczarException {
       try {
-        return signature.verify(sig.array(), sig.position(), sig.limit()
-            - sig.position());
+        return verifySignature(signature, sig);
       } catch (GeneralSecurityException e) {
         throw new KeyczarException(e);
       }
@@ -17,17 +17,26 @@
 package org.keyczar;
 
 import org.apache.log4j.Logger;
+import org.keyczar.ParallelTasks.RangeTask;
 import org.keyczar.enums.KeyPurpose;
 import org.keyczar.exceptions.KeyczarException;
 import org.keyczar.exceptions.NoPrimaryKeyException;
+import org.keyczar.exceptions.ShortBufferException;
 import org.keyczar.i18n.Messages;
 import org.keyczar.interfaces.EncryptingStream;
 import org.keyczar.interfaces.KeyczarReader;
 import org.keyczar.interfaces.SigningStream;
 import org.keyczar.util.Base64Coder;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Encrypters are used strictly to encrypt data. Typically, Encrypters will read
@@ -43,7 +52,9 @@ import java.nio.ByteBuffer;
 public class Encrypter extends Keyczar {
   private static final Logger LOG =
     Logger.getLogger(Encrypter.class);
-  private static final int ENCRYPT_CHUNK_SIZE = 1024;
+  static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+  private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
 
   /**
    * Initialize a new Encrypter with a KeyczarReader. The corresponding key set
@@ -59,6 +70,46 @@ public class Encrypter extends Keyczar {
     super(reader);
   }
 
+  /**
+   * Initialize a new Encrypter with a KeyczarReader. The corresponding key set
+   * must have a purpose of either
+   * {@link org.keyczar.enums.KeyPurpose#ENCRYPT} or
+   * {@link org.keyczar.enums.KeyPurpose#DECRYPT_AND_ENCRYPT}.
+   *
+   * If lazyKeys is set, only the primary key and versions without key hashes
+   * in the metadata are read up front; each other version is read the first
+   * time one of its hashes is used, so the reader must stay usable.
+   *
+   * @param reader A reader to read keys from
+   * @param lazyKeys Whether to defer reading non-primary keys
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   */
+  public Encrypter(KeyczarReader reader, boolean lazyKeys)
+      throws KeyczarException {
+    super(reader, lazyKeys);
+  }
+
+  /**
+   * Initialize a new Encrypter with a KeyczarReader. The corresponding key set
+   * must have a purpose of either
+   * {@link org.keyczar.enums.KeyPurpose#ENCRYPT} or
+   * {@link org.keyczar.enums.KeyPurpose#DECRYPT_AND_ENCRYPT}.
+   *
+   * Keys are parsed concurrently on the given executor, which shortens
+   * loading key sets with many large keys. The result is the same as
+   * loading them one by one.
+   *
+   * @param reader A reader to read keys from
+   * @param executor The executor to parse keys on
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   */
+  public Encrypter(KeyczarReader reader, ExecutorService executor)
+      throws KeyczarException {
+    super(reader, executor);
+  }
+
   /**
    * Initialize a new Encrypter with a key set location. This will attempt to
    * read the keys using a KeyczarFileReader. The corresponding key set
@@ -73,6 +124,29 @@ public class Encrypter extends Keyczar {
   public Encrypter(String fileLocation) throws KeyczarException {
     super(fileLocation);
   }
+
+  /**
+   * Sets the number of plaintext bytes encrypted before the resulting
+   * ciphertext is fed to the MAC. Each chunk of ciphertext is signed while it
+   * is still in cache, so the chunk should fit comfortably in the CPU's data
+   * cache. Inputs no larger than one chunk are encrypted in a single pass.
+   *
+   * @param chunkSize The chunk size in bytes; must be positive.
+   */
+  public void setChunkSize(int chunkSize) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException(
+          Messages.getString("Encrypter.InvalidChunkSize", chunkSize));
+    }
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * @return The number of bytes processed per encrypt-then-MAC chunk
+   */
+  public int getChunkSize() {
+    return chunkSize;
+  }
   
   /**
    * Returns the size of the ciphertext output that would result from encrypting
@@ -83,18 +157,235 @@ public class Encrypter extends Keyczar {
    * @throws KeyczarException If the key set contains no primary encrypting key.
    */
   public int ciphertextSize(int inputLength) throws KeyczarException {
+    KeyczarKey encryptingKey = getPrimaryKey();
+    if (encryptingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+    EncryptingStream cryptStream = (EncryptingStream) encryptingKey.getStream();
+    try {
+      SigningStream signStream = cryptStream.getSigningStream();
+      return HEADER_SIZE + cryptStream.maxOutputSize(inputLength) +
+          signStream.digestSize();
+    } finally {
+      encryptingKey.releaseStream(cryptStream);
+    }
+  }
+
+  /**
+   * Encrypt a batch of inputs with the primary key.
+   *
+   * @param inputs The inputs to encrypt
+   * @return The ciphertexts, in the same order as the inputs
+   * @throws KeyczarException If there is a JCE exception or the key set does
+   * not contain a primary encrypting key.
+   * @see #encryptBatch(List, ExecutorService)
+   */
+  public List<byte[]> encryptBatch(List<byte[]> inputs)
+      throws KeyczarException {
+    return encryptBatch(inputs, null);
+  }
 
-      KeyczarKey encryptingKey = getPrimaryKey();
-      if (encryptingKey == null) {
-        throw new NoPrimaryKeyException();
+  /**
+   * Encrypt a batch of inputs with the primary key, optionally spread across
+   * an executor. The primary key is looked up once, and each range of inputs
+   * is encrypted with a single stream checkout, so the cipher and MAC set-up
+   * and the random IV draws are shared across the range.
+   *
+   * @param inputs The inputs to encrypt
+   * @param executor The executor to spread the batch across, or null to
+   * encrypt it on the calling thread
+   * @return The ciphertexts, in the same order as the inputs
+   * @throws KeyczarException If there is a JCE exception or the key set does
+   * not contain a primary encrypting key.
+   */
+  public List<byte[]> encryptBatch(final List<byte[]> inputs,
+      ExecutorService executor) throws KeyczarException {
+    final KeyczarKey encryptingKey = getPrimaryKey();
+    if (encryptingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+    final byte[][] outputs = new byte[inputs.size()][];
+    ParallelTasks.run(executor, outputs.length, new RangeTask() {
+      @Override
+      public void run(int from, int to) throws KeyczarException {
+        EncryptingStream cryptStream =
+            (EncryptingStream) encryptingKey.getStream();
+        try {
+          int digestSize = cryptStream.getSigningStream().digestSize();
+          for (int i = from; i < to; i++) {
+            byte[] input = inputs.get(i);
+            byte[] output = new byte[HEADER_SIZE
+                + cryptStream.maxOutputSize(input.length) + digestSize];
+            ByteBuffer outputBuffer = ByteBuffer.wrap(output);
+            encrypt(encryptingKey, cryptStream, ByteBuffer.wrap(input),
+                outputBuffer);
+            if (outputBuffer.position() != output.length) {
+              byte[] outputBytes = new byte[outputBuffer.position()];
+              System.arraycopy(output, 0, outputBytes, 0, outputBytes.length);
+              output = outputBytes;
+            }
+            outputs[i] = output;
+          }
+        } finally {
+          encryptingKey.releaseStream(cryptStream);
+        }
       }
-      EncryptingStream cryptStream = (EncryptingStream) encryptingKey.getStream();
-    
-    SigningStream signStream = cryptStream.getSigningStream();
+    });
+    return Arrays.asList(outputs);
+  }
+
+  /**
+   * Encrypt a batch of input buffers into the corresponding output buffers
+   * with the primary key.
+   *
+   * @param inputs The input buffers to encrypt. Will not be modified.
+   * @param outputs The buffers to write each ciphertext to
+   * @throws KeyczarException If there is a JCE exception, the key set does
+   * not contain a primary encrypting key, or an output buffer is too small.
+   * @see #encryptBatch(ByteBuffer[], ByteBuffer[], ExecutorService)
+   */
+  public void encryptBatch(ByteBuffer[] inputs, ByteBuffer[] outputs)
+      throws KeyczarException {
+    encryptBatch(inputs, outputs, null);
+  }
+
+  /**
+   * Encrypt a batch of input buffers into the corresponding output buffers
+   * with the primary key, optionally spread across an executor. Each output
+   * buffer is written as by {@link #encrypt(ByteBuffer, ByteBuffer)}.
+   *
+   * @param inputs The input buffers to encrypt. Will not be modified.
+   * @param outputs The buffers to write each ciphertext to
+   * @param executor The executor to spread the batch across, or null to
+   * encrypt it on the calling thread
+   * @throws KeyczarException If there is a JCE exception, the key set does
+   * not contain a primary encrypting key, or an output buffer is too small.
+   */
+  public void encryptBatch(final ByteBuffer[] inputs,
+      final ByteBuffer[] outputs, ExecutorService executor)
+      throws KeyczarException {
+    if (inputs.length != outputs.length) {
+      throw new IllegalArgumentException(Messages.getString(
+          "Encrypter.BatchSizeMismatch", inputs.length, outputs.length));
+    }
+    final KeyczarKey encryptingKey = getPrimaryKey();
+    if (encryptingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+    ParallelTasks.run(executor, inputs.length, new RangeTask() {
+      @Override
+      public void run(int from, int to) throws KeyczarException {
+        EncryptingStream cryptStream =
+            (EncryptingStream) encryptingKey.getStream();
+        try {
+          for (int i = from; i < to; i++) {
+            encrypt(encryptingKey, cryptStream, inputs[i], outputs[i]);
+          }
+        } finally {
+          encryptingKey.releaseStream(cryptStream);
+        }
+      }
+    });
+  }
+
+  /**
+   * Encrypt the contents of the input channel, from its current position to
+   * its end, and write the ciphertext to the output channel at its current
+   * position. Both files are memory mapped and the ciphertext is written
+   * straight into the mapped output, so no copies are made on the heap. On
+   * return both channels are positioned after the bytes they have consumed or
+   * written, so the output can be handed on with
+   * {@link FileChannel#transferTo}.
+   *
+   * The whole ciphertext must fit in a single ByteBuffer; larger files should
+   * be encrypted with {@link #encryptingOutputStream(OutputStream)}.
+   *
+   * @param input The channel to read plaintext from
+   * @param output The channel to write ciphertext to. Must be open for reading
+   * and writing in order to be mapped.
+   * @return The number of ciphertext bytes written
+   * @throws KeyczarException If there is a JCE exception or an IO error, the
+   * key set does not contain a primary encrypting key, or the input is too
+   * large.
+   */
+  public int encrypt(FileChannel input, FileChannel output)
+      throws KeyczarException {
+    try {
+      long inputStart = input.position();
+      long inputLength = input.size() - inputStart;
+      int maxOutputLength = (inputLength > Integer.MAX_VALUE) ? -1
+          : ciphertextSize((int) inputLength);
+      if (maxOutputLength < inputLength) {
+        throw new KeyczarException(
+            Messages.getString("Keyczar.FileTooLarge", inputLength));
+      }
+      MappedByteBuffer inputBuffer =
+          input.map(FileChannel.MapMode.READ_ONLY, inputStart, inputLength);
+      long outputStart = output.position();
+      long outputSize = output.size();
+      boolean finished = false;
+      try {
+        MappedByteBuffer outputBuffer = output.map(
+            FileChannel.MapMode.READ_WRITE, outputStart, maxOutputLength);
+        encrypt(inputBuffer, outputBuffer);
+        int written = outputBuffer.position();
+        input.position(inputStart + inputLength);
+        finishMappedOutput(output, outputSize, outputStart + written);
+        finished = true;
+        return written;
+      } finally {
+        if (!finished) {
+          discardMappedOutput(output, outputSize, outputStart);
+        }
+      }
+    } catch (IOException e) {
+      throw new KeyczarException(e);
+    }
+  }
+
+  /**
+   * Positions a channel that was written through a mapped buffer after the
+   * bytes that were actually written. Mapping past the end grows the file,
+   * so any unused tail of the mapping is truncated away again.
+   */
+  static void finishMappedOutput(FileChannel output, long originalSize,
+      long end) throws IOException {
+    if (output.size() > Math.max(originalSize, end)) {
+      output.truncate(Math.max(originalSize, end));
+    }
+    output.position(end);
+  }
+
+  /**
+   * Restores a channel that was mapped for output by a call that then failed
+   * to its original size and position, so the file is left as it was.
+   */
+  static void discardMappedOutput(FileChannel output, long originalSize,
+      long start) throws IOException {
+    if (output.size() > originalSize) {
+      output.truncate(originalSize);
+    }
+    output.position(start);
+  }
 
-    int outputSize = HEADER_SIZE + cryptStream.maxOutputSize(inputLength) +
-        signStream.digestSize();
-    return outputSize;
+  /**
+   * Returns an OutputStream that encrypts everything written to it with the
+   * primary key and writes the ciphertext to the given stream. The ciphertext
+   * is only complete once the returned stream has been closed.
+   *
+   * @param output The stream to write the ciphertext to. It is closed when
+   * the returned stream is closed.
+   * @return A stream to write plaintext to
+   * @throws KeyczarException If the key set does not contain a primary
+   * encrypting key, there is a JCE exception, or the header can't be written.
+   */
+  public EncryptingOutputStream encryptingOutputStream(OutputStream output)
+      throws KeyczarException {
+    KeyczarKey encryptingKey = getPrimaryKey();
+    if (encryptingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+    return new EncryptingOutputStream(encryptingKey, output, chunkSize);
   }
 
   /**
@@ -106,14 +397,54 @@ public class Encrypter extends Keyczar {
    * not contain a primary encrypting key.
    */
   public byte[] encrypt(byte[] input) throws KeyczarException {
-    ByteBuffer output = ByteBuffer.allocate(ciphertextSize(input.length));
-    encrypt(ByteBuffer.wrap(input), output);
-    output.reset();
-    byte[] outputBytes = new byte[output.remaining()];
-    output.get(outputBytes);
+    byte[] output = new byte[ciphertextSize(input.length)];
+    int outputLength = encrypt(input, 0, input.length, output, 0);
+    if (outputLength == output.length) {
+      return output;
+    }
+    byte[] outputBytes = new byte[outputLength];
+    System.arraycopy(output, 0, outputBytes, 0, outputLength);
     return outputBytes;
   }
 
+  /**
+   * Encrypt part of the given input array into the given output array. No
+   * arrays are allocated, so callers that reuse their buffers can encrypt
+   * without creating garbage proportional to the message size.
+   *
+   * @param input The array holding the plaintext
+   * @param inputOffset The offset of the plaintext in the input array
+   * @param inputLength The length of the plaintext
+   * @param output The array to write the ciphertext to
+   * @param outputOffset The offset in the output array to start writing at
+   * @return The number of ciphertext bytes written
+   * @throws KeyczarException If there is a JCE exception, the key set does
+   * not contain a primary encrypting key, or the output array does not have
+   * room for {@link #ciphertextSize(int)} bytes after the offset.
+   */
+  public int encrypt(byte[] input, int inputOffset, int inputLength,
+      byte[] output, int outputOffset) throws KeyczarException {
+    KeyczarKey encryptingKey = getPrimaryKey();
+    if (encryptingKey == null) {
+      throw new NoPrimaryKeyException();
+    }
+
+    EncryptingStream cryptStream = (EncryptingStream) encryptingKey.getStream();
+    try {
+      int needed = HEADER_SIZE + cryptStream.maxOutputSize(inputLength)
+          + cryptStream.getSigningStream().digestSize();
+      if (output.length - outputOffset < needed) {
+        throw new ShortBufferException(output.length - outputOffset, needed);
+      }
+      ByteBuffer outputBuffer = ByteBuffer.wrap(output, outputOffset, needed);
+      encrypt(encryptingKey, cryptStream,
+          ByteBuffer.wrap(input, inputOffset, inputLength), outputBuffer);
+      return outputBuffer.position() - outputOffset;
+    } finally {
+      encryptingKey.releaseStream(cryptStream);
+    }
+  }
+
   /**
    * Encrypt the given input ByteBuffer.
    *
@@ -124,39 +455,53 @@ public class Encrypter extends Keyczar {
    */
   public void encrypt(ByteBuffer input, ByteBuffer output)
       throws KeyczarException {
-    LOG.debug(Messages.getString("Encrypter.Encrypting", input.remaining()));
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(Messages.getString("Encrypter.Encrypting", input.remaining()));
+    }
     KeyczarKey encryptingKey = getPrimaryKey();
     if (encryptingKey == null) {
       throw new NoPrimaryKeyException();
     }
 
     EncryptingStream cryptStream = (EncryptingStream) encryptingKey.getStream();
-    
+    try {
+      encrypt(encryptingKey, cryptStream, input, output);
+    } finally {
+      encryptingKey.releaseStream(cryptStream);
+    }
+  }
+
+  private void encrypt(KeyczarKey encryptingKey, EncryptingStream cryptStream,
+      ByteBuffer input, ByteBuffer output) throws KeyczarException {
     // Initialize the signing stream
     SigningStream signStream = cryptStream.getSigningStream();
     signStream.initSign();
 
     // Write the key header
     output.mark();
-    ByteBuffer outputToSign = output.asReadOnlyBuffer();
+    // Duplicates rather than read-only views, so the JCE can work directly on
+    // backing arrays instead of copying each chunk into a temporary array.
+    ByteBuffer outputToSign = output.duplicate();
     encryptingKey.copyHeader(output);
 
     // Write the IV. May be an empty array of zero length
     cryptStream.initEncrypt(output);
 
-    ByteBuffer inputCopy = input.asReadOnlyBuffer();
-    while (inputCopy.remaining() > ENCRYPT_CHUNK_SIZE) {
-      ByteBuffer inputChunk = inputCopy.slice();
-      inputChunk.limit(ENCRYPT_CHUNK_SIZE);
-      cryptStream.updateEncrypt(inputChunk, output);
-      inputCopy.position(inputCopy.position() + ENCRYPT_CHUNK_SIZE);
-
+    // Encrypt a chunk, then MAC its ciphertext while it is still in cache. The
+    // same two views are moved along the buffers, so no per-chunk objects are
+    // allocated.
+    ByteBuffer inputCopy = input.duplicate();
+    int inputLimit = inputCopy.limit();
+    int step = chunkSize;
+    while (inputLimit - inputCopy.position() > step) {
+      inputCopy.limit(inputCopy.position() + step);
+      cryptStream.updateEncrypt(inputCopy, output);
       outputToSign.limit(output.position());
       signStream.updateSign(outputToSign);
-      outputToSign.position(output.position());
     }
+    inputCopy.limit(inputLimit);
 
-    // Sign any remaining plaintext
+    // Encrypt any remaining plaintext
     cryptStream.doFinalEncrypt(inputCopy, output);
     output.limit(output.position() + signStream.digestSize());
 
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.i18n.Messages;
+import org.keyczar.interfaces.EncryptingStream;
+import org.keyczar.interfaces.SigningStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An OutputStream that encrypts everything written to it and writes the
+ * ciphertext to an underlying OutputStream. The output has the same format as
+ * {@link Encrypter#encrypt(byte[])}, so it can be decrypted either whole or
+ * with a {@link DecryptingInputStream}.
+ *
+ * The header and IV are written as soon as the stream is created. Plaintext
+ * is encrypted one chunk at a time and the ciphertext is signed as it is
+ * written, so memory use doesn't depend on the amount of data. The final
+ * block and the signature are only written when the stream is closed.
+ *
+ * Instances are created by {@link Encrypter#encryptingOutputStream} and are
+ * not thread safe.
+ */
+public class EncryptingOutputStream extends OutputStream {
+  // Large enough for a header, an IV, a final block and a signature
+  static final int MIN_BUFFER_SIZE = 1024;
+
+  private final OutputStream out;
+  private final EncryptingStream cryptStream;
+  private final SigningStream signStream;
+  private final int chunkSize;
+  private final ByteBuffer outputBuffer;
+  private final byte[] singleByte = new byte[1];
+  private boolean closed = false;
+
+  EncryptingOutputStream(KeyczarKey key, OutputStream out, int chunkSize)
+      throws KeyczarException {
+    this.out = out;
+    this.chunkSize = Math.max(chunkSize, MIN_BUFFER_SIZE);
+    // The stream is held until this is closed, so it isn't shared through the
+    // key's stream cache.
+    this.cryptStream = (EncryptingStream) key.createStream();
+    this.signStream = cryptStream.getSigningStream();
+    this.outputBuffer =
+        ByteBuffer.allocate(cryptStream.maxOutputSize(this.chunkSize));
+
+    signStream.initSign();
+    key.copyHeader(outputBuffer);
+    cryptStream.initEncrypt(outputBuffer);
+    try {
+      writeOutputBuffer();
+    } catch (IOException e) {
+      throw new KeyczarException(e);
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    singleByte[0] = (byte) b;
+    write(singleByte, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException(
+          Messages.getString("EncryptingOutputStream.Closed"));
+    }
+    ByteBuffer input = ByteBuffer.wrap(b, off, len);
+    int inputLimit = input.limit();
+    try {
+      while (input.position() < inputLimit) {
+        input.limit(Math.min(inputLimit, input.position() + chunkSize));
+        cryptStream.updateEncrypt(input, outputBuffer);
+        writeOutputBuffer();
+      }
+    } catch (KeyczarException e) {
+      throw DecryptingInputStream.asIOException(e);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    // Plaintext held back by the cipher until a full block is available is
+    // only written out when the stream is closed.
+    out.flush();
+  }
+
+  /**
+   * Encrypts any buffered plaintext, writes the final block of ciphertext
+   * followed by its signature, and closes the underlying stream.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      cryptStream.doFinalEncrypt(ByteBuffer.allocate(0), outputBuffer);
+      ByteBuffer outputToSign = outputBuffer.duplicate();
+      outputToSign.flip();
+      signStream.updateSign(outputToSign);
+      outputBuffer.limit(outputBuffer.position() + signStream.digestSize());
+      signStream.sign(outputBuffer);
+      out.write(outputBuffer.array(), 0, outputBuffer.position());
+      outputBuffer.clear();
+    } catch (KeyczarException e) {
+      throw DecryptingInputStream.asIOException(e);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Signs the ciphertext in the output buffer and writes it out.
+   */
+  private void writeOutputBuffer() throws IOException {
+    outputBuffer.flip();
+    try {
+      signStream.updateSign(outputBuffer.duplicate());
+    } catch (KeyczarException e) {
+      throw DecryptingInputStream.asIOException(e);
+    }
+    out.write(outputBuffer.array(), 0, outputBuffer.limit());
+    outputBuffer.clear();
+  }
+}
@@ -79,6 +79,18 @@ public class GenericKeyczar extends Keyczar {
     }
   }
 
+  /**
+   * Records the hash identifiers of every version's key in the metadata, so
+   * that key sets loaded lazily can find a version's key without parsing it.
+   * Loading a key set never records them on its own, since other
+   * implementations don't know the field.
+   */
+  void recordKeyHashes() {
+    for (KeyVersion version : getVersions()) {
+      version.setKeyHashes(getKey(version));
+    }
+  }
+
   /**
    * Demotes the status of key with given version number. Demoting PRIMARY key
    * results in a key set with no primary version.
@@ -192,7 +204,7 @@ public class GenericKeyczar extends Keyczar {
   }
 
   private boolean haveKeyWithId(byte[] keyId) {
-    return getKey(keyId) != null;
+    return hashIndex.get(keyId, 0) != null;
   }
 
   /**
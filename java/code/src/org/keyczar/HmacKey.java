@@ -17,16 +17,23 @@
 package org.keyczar;
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
+import org.keyczar.enums.HmacDigest;
 import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.i18n.Messages;
 import org.keyczar.interfaces.KeyType;
 import org.keyczar.interfaces.SigningStream;
 import org.keyczar.interfaces.Stream;
 import org.keyczar.interfaces.VerifyingStream;
+import org.keyczar.keyparams.HmacKeyParameters;
 import org.keyczar.keyparams.KeyParameters;
 import org.keyczar.util.Base64Coder;
 import org.keyczar.util.Util;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 
@@ -35,47 +42,154 @@ import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
- * Wrapping class for HMAC-SHA1 keys
+ * Wrapping class for HMAC keys. Keys use HMAC-SHA1 unless they name one of
+ * the SHA-2 digests, and may truncate their MACs to a tag shorter than the
+ * full digest.
  *
  * @author steveweis@gmail.com (Steve Weis)
  * @author arkajit.dey@gmail.com (Arkajit Dey)
  *
  */
 public class HmacKey extends KeyczarKey {
-  private static final String MAC_ALGORITHM = "HMACSHA1";
-  private static final int HMAC_DIGEST_SIZE = 20;
+  static final JsonCodec<HmacKey> JSON_CODEC = new JsonCodec<HmacKey>() {
+    @Override
+    HmacKey read(JsonReader in) throws IOException {
+      String hmacKeyString = null;
+      HmacDigest digest = null;
+      Integer tagSize = null;
+      int size = 0;
+      in.beginObject();
+      while (in.hasNext()) {
+        String name = in.nextName();
+        if (name.equals("hmacKeyString")) {
+          hmacKeyString = nextString(in);
+        } else if (name.equals("digest")) {
+          digest = nextEnum(in, HmacDigest.class);
+        } else if (name.equals("tagSize")) {
+          if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+          } else {
+            tagSize = in.nextInt();
+          }
+        } else if (name.equals("size")) {
+          size = in.nextInt();
+        } else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return new HmacKey(size, hmacKeyString, digest, tagSize);
+    }
+
+    @Override
+    void write(JsonWriter out, HmacKey key) throws IOException {
+      out.beginObject();
+      writeString(out, "hmacKeyString", key.hmacKeyString);
+      writeEnum(out, "digest", key.digest);
+      if (key.tagSize != null) {
+        out.name("tagSize").value(key.tagSize.longValue());
+      }
+      out.name("size").value(key.size);
+      out.endObject();
+    }
+  };
 
   @Expose private final String hmacKeyString;
+  // Both are omitted for plain HMAC-SHA1 keys, so that those are written
+  // exactly as before and stay readable by other implementations
+  @Expose private final HmacDigest digest;
+  @Expose private final Integer tagSize;
 
   private SecretKey hmacKey;
   private final byte[] hash = new byte[Keyczar.KEY_HASH_SIZE];
+  // Keyed once and cloned for every new stream, so that the HMAC pads are
+  // only computed once per key
+  private volatile Mac prototypeMac;
 
   public HmacKey(byte[] keyBytes) throws KeyczarException {
+    this(keyBytes, HmacDigest.SHA1, -1);
+  }
+
+  /**
+   * Creates an HMAC key using the given digest.
+   *
+   * @param keyBytes The raw key
+   * @param digest The digest to build the HMAC on
+   * @param tagSize The number of bytes to truncate MACs to, or -1 for the
+   * full digest size
+   * @throws KeyczarException if the tag size is outside the range the digest
+   * allows
+   */
+  public HmacKey(byte[] keyBytes, HmacDigest digest, int tagSize)
+      throws KeyczarException {
     super(keyBytes.length * 8);
+    if (tagSize != -1) {
+      checkTagSize(tagSize, digest);
+    }
     hmacKeyString = Base64Coder.encodeWebSafe(keyBytes);
+    this.digest = (digest == HmacDigest.SHA1) ? null : digest;
+    this.tagSize = (tagSize == -1 || tagSize == digest.getSize())
+        ? null : tagSize;
     initJceKey(keyBytes);
   }
 
-  // Used by GSON, which will overwrite the values set here.
-  private HmacKey() {
-    super(0);
-    hmacKeyString = null;
+  // Used when reading from JSON, which initializes the JCE key afterwards
+  private HmacKey(int size, String hmacKeyString, HmacDigest digest,
+      Integer tagSize) {
+    super(size);
+    this.hmacKeyString = hmacKeyString;
+    this.digest = digest;
+    this.tagSize = tagSize;
   }
 
   static HmacKey generate(KeyParameters params) throws KeyczarException {
-    return new HmacKey(Util.rand(params.getKeySize() / 8));
+    return generate(params, HmacDigest.SHA1);
+  }
+
+  static HmacKey generate(KeyParameters params, HmacDigest digest)
+      throws KeyczarException {
+    int tagSize = -1;
+    if (params instanceof HmacKeyParameters) {
+      tagSize = ((HmacKeyParameters) params).getTagSize();
+    }
+    return new HmacKey(Util.rand(params.getKeySize() / 8), digest, tagSize);
   }
 
   void initFromJson() throws KeyczarException {
+    if (tagSize != null) {
+      checkTagSize(tagSize, getDigest());
+    }
     initJceKey(Base64Coder.decodeWebSafe(hmacKeyString));
   }
 
+  private static void checkTagSize(int tagSize, HmacDigest digest)
+      throws KeyczarException {
+    if (tagSize < digest.getMinTagSize() || tagSize > digest.getSize()) {
+      throw new KeyczarException(Messages.getString("HmacKey.InvalidTagSize",
+          tagSize, digest, digest.getMinTagSize(), digest.getSize()));
+    }
+  }
+
   private void initJceKey(byte[] keyBytes) throws KeyczarException {
-    hmacKey = new SecretKeySpec(keyBytes, MAC_ALGORITHM);
+    hmacKey = new SecretKeySpec(keyBytes, getDigest().getMacAlgorithm());
     byte[] fullHash = Util.hash(keyBytes);
     System.arraycopy(fullHash, 0, hash, 0, hash.length);
   }
 
+  /**
+   * Returns the digest this key's HMAC is built on.
+   */
+  public HmacDigest getDigest() {
+    return (digest == null) ? HmacDigest.SHA1 : digest;
+  }
+
+  /**
+   * Returns the number of bytes of each MAC this key produces and checks.
+   */
+  public int getTagSize() {
+    return (tagSize == null) ? getDigest().getSize() : tagSize;
+  }
+
   /*
    * This method is for AesKey to grab the key bytes to compute an identifying
    * hash.
@@ -86,16 +200,36 @@ public class HmacKey extends KeyczarKey {
 
 
   @Override
-  protected Stream getStream() throws KeyczarException {
-    if (cachedStream == null) {
-      cachedStream = new HmacStream();
+  protected Stream createStream() throws KeyczarException {
+    return new HmacStream();
+  }
+
+  /**
+   * Returns a Mac that is already initialized with this key. It is cloned
+   * from a prototype Mac that is keyed on first use; providers whose Macs
+   * can't be cloned get a freshly initialized Mac instead.
+   */
+  private Mac newKeyedMac() throws GeneralSecurityException {
+    Mac prototype = prototypeMac;
+    if (prototype == null) {
+      prototype = Mac.getInstance(getDigest().getMacAlgorithm());
+      prototype.init(hmacKey);
+      prototypeMac = prototype;
+    }
+    try {
+      synchronized (prototype) {
+        return (Mac) prototype.clone();
+      }
+    } catch (CloneNotSupportedException e) {
+      Mac mac = Mac.getInstance(getDigest().getMacAlgorithm());
+      mac.init(hmacKey);
+      return mac;
     }
-    return cachedStream;
   }
   
   @Override
   public KeyType getType() {
-    return DefaultKeyType.HMAC_SHA1;
+    return getDigest().getKeyType();
   }
 
   @Override
@@ -103,8 +237,13 @@ public class HmacKey extends KeyczarKey {
     return hash;
   } 
 
+  @Override
+  public String toString() {
+    return JSON_CODEC.encode(this);
+  }
+
   static HmacKey read(String input) throws KeyczarException {
-    HmacKey key = Util.gson().fromJson(input, HmacKey.class);
+    HmacKey key = JSON_CODEC.decode(input);
     key.initFromJson();
     return key;
   }
@@ -116,10 +255,14 @@ public class HmacKey extends KeyczarKey {
 
   private class HmacStream implements VerifyingStream, SigningStream {
     private final Mac hmac;
+    // Reused for every MAC this stream computes; only the first tagSize
+    // bytes are written or compared
+    private final byte[] macBytes = new byte[getDigest().getSize()];
+    private final int tagSize = getTagSize();
 
     public HmacStream() throws KeyczarException {
       try {
-        hmac = Mac.getInstance(MAC_ALGORITHM);
+        hmac = newKeyedMac();
       } catch (GeneralSecurityException e) {
         throw new KeyczarException(e);
       }
@@ -127,26 +270,25 @@ public class HmacKey extends KeyczarKey {
 
     @Override
     public int digestSize() {
-      return HMAC_DIGEST_SIZE;
+      return tagSize;
     }
 
     @Override
-    public void initSign() throws KeyczarException {
-      try {
-        hmac.init(hmacKey);
-      } catch (GeneralSecurityException e) {
-        throw new KeyczarException(e);
-      }
+    public void initSign() {
+      // The Mac is created keyed and keeps its key across doFinal() and
+      // reset(), so the HMAC pads never need to be recomputed.
+      hmac.reset();
     }
 
     @Override
-    public void initVerify() throws KeyczarException {
+    public void initVerify() {
       initSign();
     }
 
     @Override
-    public void sign(ByteBuffer output) {
-      output.put(hmac.doFinal());
+    public void sign(ByteBuffer output) throws KeyczarException {
+      doFinal();
+      output.put(macBytes, 0, tagSize);
     }
 
     @Override
@@ -160,10 +302,17 @@ public class HmacKey extends KeyczarKey {
     }
 
     @Override
-    public boolean verify(ByteBuffer signature) {
-      byte[] sigBytes = new byte[signature.remaining()];
-      signature.get(sigBytes);
-      return Util.safeArrayEquals(hmac.doFinal(), sigBytes);
+    public boolean verify(ByteBuffer signature) throws KeyczarException {
+      doFinal();
+      return Util.safeBufferEquals(macBytes, tagSize, signature);
+    }
+
+    private void doFinal() throws KeyczarException {
+      try {
+        hmac.doFinal(macBytes, 0);
+      } catch (GeneralSecurityException e) {
+        throw new KeyczarException(e);
+      }
     }
   }
 }
@@ -10,7 +10,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Enables use of a single imported key.
+ * Enables use of a single imported key. Keyczar takes the keys from this
+ * reader as they are, so the keys are neither serialized nor parsed again.
  *
  */
 @Experimental
@@ -34,7 +35,7 @@ public class ImportedKeyReader implements KeyczarReader {
 
   ImportedKeyReader(HmacKey key) {
     this.metadata = new KeyMetadata(
-            "Imported HMAC", KeyPurpose.SIGN_AND_VERIFY, DefaultKeyType.HMAC_SHA1);
+            "Imported HMAC", KeyPurpose.SIGN_AND_VERIFY, key.getType());
     KeyVersion version = new KeyVersion(0, KeyStatus.PRIMARY, false);
     this.metadata.addVersion(version);
     this.keys = new ArrayList<KeyczarKey>();
@@ -53,6 +54,13 @@ public class ImportedKeyReader implements KeyczarReader {
     return keys.get(version).toString();
   }
 
+  /**
+   * Returns the key of the given version as it was handed to this reader.
+   */
+  KeyczarKey getImportedKey(int version) {
+    return keys.get(version);
+  }
+
   @Override
   public String getMetadata() {
     return metadata.toString();
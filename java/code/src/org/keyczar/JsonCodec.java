@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import org.keyczar.i18n.Messages;
+import org.keyczar.interfaces.KeyType;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/**
+ * Hand-written streaming JSON binding for one class, used on the key loading
+ * and storing paths in place of Gson's reflection over {@code @Expose} fields.
+ *
+ * <p>Codecs write exactly what Gson writes for the same object: fields in
+ * declaration order with subclass fields before inherited ones, and null
+ * fields left out. They read anything Gson would, ignoring unknown fields
+ * and leaving missing ones at their defaults.
+ *
+ * @param <T> The class this codec binds
+ */
+abstract class JsonCodec<T> {
+  /**
+   * Reads one value, positioned at its first token.
+   */
+  abstract T read(JsonReader in) throws IOException;
+
+  /**
+   * Writes the given non-null value.
+   */
+  abstract void write(JsonWriter out, T value) throws IOException;
+
+  /**
+   * Parses a complete JSON string.
+   *
+   * @throws JsonParseException If the string is not valid JSON for this type
+   */
+  final T decode(String json) {
+    JsonReader in = new JsonReader(new StringReader(json));
+    in.setLenient(true); // as lenient as Gson.fromJson
+    try {
+      return read(in);
+    } catch (IOException e) {
+      throw new JsonSyntaxException(e);
+    } catch (IllegalStateException e) {
+      // Thrown by JsonReader when a value has an unexpected type
+      throw new JsonSyntaxException(e);
+    } catch (NumberFormatException e) {
+      throw new JsonSyntaxException(e);
+    }
+  }
+
+  final String encode(T value) {
+    StringWriter buffer = new StringWriter();
+    JsonWriter out = new JsonWriter(buffer);
+    out.setHtmlSafe(true); // as Gson.toJson escapes
+    try {
+      write(out, value);
+      out.flush();
+    } catch (IOException e) {
+      // StringWriter does not throw
+      throw new IllegalStateException(e);
+    }
+    return buffer.toString();
+  }
+
+  /**
+   * Reads a string value, which may be null.
+   */
+  static String nextString(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    return in.nextString();
+  }
+
+  /**
+   * Reads an enum constant written by its name, which may be null.
+   */
+  static <E extends Enum<E>> E nextEnum(JsonReader in, Class<E> type)
+      throws IOException {
+    String name = nextString(in);
+    if (name == null) {
+      return null;
+    }
+    try {
+      return Enum.valueOf(type, name);
+    } catch (IllegalArgumentException e) {
+      throw new JsonParseException(Messages.getString(
+          "JsonCodec.UnknownValue", type.getSimpleName(), name), e);
+    }
+  }
+
+  /**
+   * Reads a key type written by its registered name.
+   */
+  static KeyType nextKeyType(JsonReader in) throws IOException {
+    String name = nextString(in);
+    return (name == null) ? null : KeyType.KeyTypeDeserializer.getType(name);
+  }
+
+  /**
+   * Reads a nested value with the given codec, which may be null.
+   */
+  static <V> V nextValue(JsonReader in, JsonCodec<V> codec) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    return codec.read(in);
+  }
+
+  static void writeString(JsonWriter out, String name, String value)
+      throws IOException {
+    if (value != null) {
+      out.name(name).value(value);
+    }
+  }
+
+  static void writeEnum(JsonWriter out, String name, Enum<?> value)
+      throws IOException {
+    if (value != null) {
+      out.name(name).value(value.name());
+    }
+  }
+
+  static void writeKeyType(JsonWriter out, String name, KeyType value)
+      throws IOException {
+    if (value != null) {
+      out.name(name).value(value.getName());
+    }
+  }
+
+  static <V> void writeValue(JsonWriter out, String name, V value,
+      JsonCodec<V> codec) throws IOException {
+    if (value != null) {
+      out.name(name);
+      codec.write(out, value);
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import org.keyczar.util.Util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable index from key hash identifiers to the keys that carry them.
+ * The hashes are kept as ints in an open-addressing table, so a lookup
+ * neither boxes nor copies the hash out of the ciphertext or signature it is
+ * read from. Several keys may share a hash; they are returned in the order
+ * they were added, and every lookup of a hash returns the same array.
+ *
+ * <p>Indexes are assembled with a {@link Builder} and never modified
+ * afterwards; adding a key means building a new index.
+ */
+final class KeyHashIndex {
+  private final int[] hashes;
+  // A null slot is empty
+  private final KeyczarKey[][] slots;
+  private final int mask;
+
+  private KeyHashIndex(Map<Integer, List<KeyczarKey>> entries) {
+    int capacity = 2;
+    while (capacity < entries.size() * 2) {
+      capacity <<= 1;
+    }
+    hashes = new int[capacity];
+    slots = new KeyczarKey[capacity][];
+    mask = capacity - 1;
+    for (Map.Entry<Integer, List<KeyczarKey>> entry : entries.entrySet()) {
+      int hash = entry.getKey();
+      int slot = slot(hash);
+      while (slots[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+      hashes[slot] = hash;
+      slots[slot] = entry.getValue().toArray(new KeyczarKey[0]);
+    }
+  }
+
+  private int slot(int hash) {
+    // Hash identifiers are already well mixed, but fallback hashes needn't be
+    int h = hash * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  /**
+   * Returns the keys with the given hash identifier, or null if there are
+   * none.
+   */
+  KeyczarKey[] get(int hash) {
+    int slot = slot(hash);
+    KeyczarKey[] keys;
+    while ((keys = slots[slot]) != null) {
+      if (hashes[slot] == hash) {
+        return keys;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return null;
+  }
+
+  /**
+   * Returns the keys whose hash identifier is stored big-endian at the given
+   * offset of an array, or null if there are none.
+   */
+  KeyczarKey[] get(byte[] bytes, int offset) {
+    return get(Util.readInt(bytes, offset));
+  }
+
+  /**
+   * Returns the keys whose hash identifier is stored at the given absolute
+   * offset of a buffer, or null if there are none. The buffer's position is
+   * not changed.
+   */
+  KeyczarKey[] get(ByteBuffer buffer, int offset) {
+    return get(Util.readInt(buffer, offset));
+  }
+
+  /**
+   * Returns a builder holding every entry of this index.
+   */
+  Builder toBuilder() {
+    Builder builder = new Builder();
+    for (int i = 0; i < slots.length; i++) {
+      if (slots[i] != null) {
+        for (KeyczarKey key : slots[i]) {
+          builder.add(hashes[i], key);
+        }
+      }
+    }
+    return builder;
+  }
+
+  static final class Builder {
+    private final Map<Integer, List<KeyczarKey>> entries =
+        new LinkedHashMap<Integer, List<KeyczarKey>>();
+
+    /**
+     * Adds a key under the given hash identifier.
+     */
+    Builder add(byte[] hash, KeyczarKey key) {
+      return add(Util.toInt(hash), key);
+    }
+
+    Builder add(int hash, KeyczarKey key) {
+      List<KeyczarKey> keys = entries.get(hash);
+      if (keys == null) {
+        keys = new ArrayList<KeyczarKey>();
+        entries.put(hash, keys);
+      }
+      keys.add(key);
+      return this;
+    }
+
+    KeyHashIndex build() {
+      return new KeyHashIndex(entries);
+    }
+  }
+}
@@ -17,13 +17,16 @@
 package org.keyczar;
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import org.keyczar.enums.KeyPurpose;
 import org.keyczar.enums.KeyStatus;
 import org.keyczar.exceptions.NoPrimaryKeyException;
 import org.keyczar.interfaces.KeyType;
-import org.keyczar.util.Util;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -51,6 +54,64 @@ import java.util.Map;
  *
  */
 public class KeyMetadata {
+  private static final JsonCodec<KeyMetadata> JSON_CODEC =
+      new JsonCodec<KeyMetadata>() {
+    @Override
+    KeyMetadata read(JsonReader in) throws IOException {
+      KeyMetadata kmd = new KeyMetadata();
+      in.beginObject();
+      while (in.hasNext()) {
+        String name = in.nextName();
+        if (name.equals("name")) {
+          kmd.name = nextString(in);
+        } else if (name.equals("purpose")) {
+          kmd.purpose = nextEnum(in, KeyPurpose.class);
+        } else if (name.equals("type")) {
+          kmd.type = nextKeyType(in);
+        } else if (name.equals("versions")) {
+          kmd.versions = readVersions(in);
+        } else if (name.equals("encrypted")) {
+          kmd.encrypted = in.nextBoolean();
+        } else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return kmd;
+    }
+
+    private List<KeyVersion> readVersions(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
+      }
+      List<KeyVersion> versions = new ArrayList<KeyVersion>();
+      in.beginArray();
+      while (in.hasNext()) {
+        versions.add(nextValue(in, KeyVersion.JSON_CODEC));
+      }
+      in.endArray();
+      return versions;
+    }
+
+    @Override
+    void write(JsonWriter out, KeyMetadata kmd) throws IOException {
+      out.beginObject();
+      writeString(out, "name", kmd.name);
+      writeEnum(out, "purpose", kmd.purpose);
+      writeKeyType(out, "type", kmd.type);
+      if (kmd.versions != null) {
+        out.name("versions").beginArray();
+        for (KeyVersion version : kmd.versions) {
+          KeyVersion.JSON_CODEC.write(out, version);
+        }
+        out.endArray();
+      }
+      out.name("encrypted").value(kmd.encrypted);
+      out.endObject();
+    }
+  };
+
   @Expose String name = "";
   @Expose KeyPurpose purpose = KeyPurpose.TEST;
   @Expose KeyType type = DefaultKeyType.TEST;
@@ -72,7 +133,7 @@ public class KeyMetadata {
 
   @Override
   public String toString() {
-    return Util.gson().toJson(this);
+    return JSON_CODEC.encode(this);
   }
 
   /**
@@ -162,7 +223,7 @@ public class KeyMetadata {
    * @return KeyMetadata corresponding to JSON input
    */
   public static KeyMetadata read(String jsonString) {
-    KeyMetadata kmd = Util.gson().fromJson(jsonString, KeyMetadata.class);
+    KeyMetadata kmd = JSON_CODEC.decode(jsonString);
     for (KeyVersion version : kmd.getVersions()) {
       kmd.versionMap.put(version.getVersionNumber(), version);
     }
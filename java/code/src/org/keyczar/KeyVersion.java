@@ -17,10 +17,19 @@
 package org.keyczar;
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import org.keyczar.enums.KeyStatus;
+import org.keyczar.exceptions.Base64DecodingException;
+import org.keyczar.util.Base64Coder;
 import org.keyczar.util.Util;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 
 /**
  * A key version consists of the following:
@@ -34,7 +43,10 @@ import org.keyczar.util.Util;
  * <ul>
  *   <li>"status": JSON representation of KeyStatus value,
  *   <li>"versionNumber": integer version number,
- *   <li>"exportable": boolean value.
+ *   <li>"exportable": boolean value,
+ *   <li>"keyHashes": optional list of the web-safe Base64 hash identifiers
+ *       of the key, which let key sets load this version lazily. Only
+ *       written by the KeyczarTool "hashkeys" command.
  * </ul>
  *
  * @author steveweis@gmail.com (Steve Weis)
@@ -42,9 +54,64 @@ import org.keyczar.util.Util;
  *
  */
 public class KeyVersion {
+  static final JsonCodec<KeyVersion> JSON_CODEC = new JsonCodec<KeyVersion>() {
+    @Override
+    KeyVersion read(JsonReader in) throws IOException {
+      KeyVersion version = new KeyVersion();
+      in.beginObject();
+      while (in.hasNext()) {
+        String name = in.nextName();
+        if (name.equals("exportable")) {
+          version.exportable = in.nextBoolean();
+        } else if (name.equals("status")) {
+          version.status = nextEnum(in, KeyStatus.class);
+        } else if (name.equals("versionNumber")) {
+          version.versionNumber = in.nextInt();
+        } else if (name.equals("keyHashes")) {
+          version.keyHashes = readHashes(in);
+        } else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return version;
+    }
+
+    private List<String> readHashes(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
+      }
+      List<String> hashes = new ArrayList<String>();
+      in.beginArray();
+      while (in.hasNext()) {
+        hashes.add(nextString(in));
+      }
+      in.endArray();
+      return hashes;
+    }
+
+    @Override
+    void write(JsonWriter out, KeyVersion version) throws IOException {
+      out.beginObject();
+      out.name("exportable").value(version.exportable);
+      writeEnum(out, "status", version.status);
+      out.name("versionNumber").value(version.versionNumber);
+      if (version.keyHashes != null) {
+        out.name("keyHashes").beginArray();
+        for (String hash : version.keyHashes) {
+          out.value(hash);
+        }
+        out.endArray();
+      }
+      out.endObject();
+    }
+  };
+
   @Expose private boolean exportable = false;
   @Expose private KeyStatus status = KeyStatus.ACTIVE;
   @Expose private int versionNumber = 0;
+  @Expose private List<String> keyHashes = null;
 
   @SuppressWarnings("unused")
   private KeyVersion() {
@@ -63,7 +130,7 @@ public class KeyVersion {
 
   @Override
   public String toString() {
-    return Util.gson().toJson(this);
+    return JSON_CODEC.encode(this);
   }
 
   @Override
@@ -93,6 +160,41 @@ public class KeyVersion {
     return exportable;
   }
 
+  /**
+   * Returns the hash identifiers recorded for this version's key, or null if
+   * none were recorded or they can't be decoded.
+   */
+  int[] getKeyHashes() {
+    if (keyHashes == null || keyHashes.isEmpty()) {
+      return null;
+    }
+    int[] hashes = new int[keyHashes.size()];
+    try {
+      for (int i = 0; i < hashes.length; i++) {
+        byte[] hash = Base64Coder.decodeWebSafe(keyHashes.get(i));
+        if (hash.length != Keyczar.KEY_HASH_SIZE) {
+          return null;
+        }
+        hashes[i] = Util.toInt(hash);
+      }
+    } catch (Base64DecodingException e) {
+      return null;
+    }
+    return hashes;
+  }
+
+  /**
+   * Records the hash identifiers of the given key, its main hash first.
+   */
+  void setKeyHashes(KeyczarKey key) {
+    List<String> hashes = new ArrayList<String>();
+    hashes.add(Base64Coder.encodeWebSafe(key.hash()));
+    for (byte[] hash : key.fallbackHash()) {
+      hashes.add(Base64Coder.encodeWebSafe(hash));
+    }
+    keyHashes = hashes;
+  }
+
   /**
    * Updates the status of this KeyVersion to given status if not null.
    * @param status
@@ -102,6 +204,6 @@ public class KeyVersion {
   }
 
   public static KeyVersion read(String jsonString) {
-    return Util.gson().fromJson(jsonString, KeyVersion.class);
+    return JSON_CODEC.decode(jsonString);
   }
 }
@@ -17,17 +17,27 @@
 package org.keyczar;
 
 import org.apache.log4j.Logger;
+import org.keyczar.ParallelTasks.RangeTask;
 import org.keyczar.enums.KeyPurpose;
 import org.keyczar.enums.KeyStatus;
 import org.keyczar.exceptions.KeyczarException;
 import org.keyczar.i18n.Messages;
 import org.keyczar.interfaces.EncryptedReader;
+import org.keyczar.interfaces.KeyType;
 import org.keyczar.interfaces.KeyczarReader;
 import org.keyczar.util.Util;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manages a Keyczar key set.
@@ -47,41 +57,93 @@ public abstract class Keyczar {
 
   final KeyMetadata kmd;
   KeyVersion primaryVersion;
-  final HashMap<KeyVersion, KeyczarKey> versionMap =
-    new HashMap<KeyVersion, KeyczarKey>();
-  final HashMap<KeyHash, ArrayList<KeyczarKey>> hashMap =
-    new HashMap<KeyHash, ArrayList<KeyczarKey>>(); // keep track of used hash identifiers
+  // Concurrent because lazily loaded keys are added while the set is in use
+  final Map<KeyVersion, KeyczarKey> versionMap =
+    new ConcurrentHashMap<KeyVersion, KeyczarKey>();
+  volatile KeyHashIndex hashIndex; // keep track of used hash identifiers
+  private int streamPoolSize = 0; // zero means streams are cached per thread
 
-  private class KeyHash {
-    private byte[] data;
+  // Only set when loading lazily: the reader to load the remaining versions
+  // from, and those versions indexed by the hashes in their metadata. Both
+  // are only changed under lazyLock, and pendingVersions is nulled once it's
+  // empty.
+  private KeyczarReader lazyReader;
+  private volatile Map<Integer, List<KeyVersion>> pendingVersions;
+  private final Object lazyLock = new Object();
+  // How this key set was loaded, so that reloads load the same way
+  private final boolean lazyKeys;
+  private final ExecutorService executor;
 
-    private KeyHash(byte[] d) {
-      if (d.length != KEY_HASH_SIZE) {
-        throw new IllegalArgumentException();
-      }
-      data = d;
-    }
+  // The metadata this key set was loaded from, to tell whether a reload has
+  // anything to do
+  private final String loadedMetadata;
+  // Set once this key set has been reloaded: the immutable snapshot of the
+  // key set now in use. Key lookups go through it, so a reload swaps every key
+  // at once and never blocks them. Reloads are serialized by reloadLock.
+  private volatile Keyczar snapshot;
+  private final Object reloadLock = new Object();
 
-    @Override
-    public boolean equals(Object o) {
-      return (o instanceof KeyHash && o.hashCode() == this.hashCode());
-    }
+  /**
+   * Instantiates a new Keyczar object by passing it a Keyczar reader object
+   *
+   * @param reader A KeyczarReader to read keys from
+   * @throws KeyczarException
+   */
+  public Keyczar(KeyczarReader reader) throws KeyczarException {
+    this(reader, false, null);
+  }
 
-    @Override
-    public int hashCode() {
-      return Util.toInt(data);
-    }
+  /**
+   * Instantiates a new Keyczar object that reads keys from a Keyczar reader.
+   * If lazyKeys is set, only the primary key and versions without key hashes
+   * in their metadata are read up front. The others are read from the reader
+   * the first time a ciphertext or signature names one of their hashes, so
+   * the reader must stay usable for as long as this object is.
+   *
+   * @param reader A KeyczarReader to read keys from
+   * @param lazyKeys Whether to defer reading non-primary keys
+   * @throws KeyczarException
+   */
+  Keyczar(KeyczarReader reader, boolean lazyKeys) throws KeyczarException {
+    this(reader, lazyKeys, null);
   }
 
   /**
-   * Instantiates a new Keyczar object by passing it a Keyczar reader object
+   * Instantiates a new Keyczar object that reads keys from a Keyczar reader
+   * and parses them concurrently on the given executor. The key strings are
+   * read from the reader on the calling thread, and the parsed keys are added
+   * to the set in version order, so the result is the same as loading them
+   * one by one. Reloads of the key set parse their new keys on the same
+   * executor, so it must stay usable for as long as this object is reloaded.
    *
    * @param reader A KeyczarReader to read keys from
+   * @param executor The executor to parse keys on, or null to parse them on
+   * the calling thread
    * @throws KeyczarException
    */
-  public Keyczar(KeyczarReader reader) throws KeyczarException {
+  Keyczar(KeyczarReader reader, ExecutorService executor)
+      throws KeyczarException {
+    this(reader, false, executor);
+  }
+
+  private Keyczar(KeyczarReader reader, boolean lazyKeys,
+      ExecutorService executor) throws KeyczarException {
+    this(reader, reader.getMetadata(), lazyKeys, executor, null);
+  }
+
+  /**
+   * Loads a key set from the given metadata and reader. Keys of versions that
+   * the previous key set has loaded are reused instead of being read again,
+   * which is what makes reloads cheap, even ones it would otherwise have
+   * deferred.
+   */
+  private Keyczar(KeyczarReader reader, String metadata, boolean lazyKeys,
+      ExecutorService executor, Keyczar previous) throws KeyczarException {
     // Reads keys from the KeyczarReader
-    kmd = KeyMetadata.read(reader.getMetadata());
+    loadedMetadata = metadata;
+    this.lazyKeys = lazyKeys;
+    this.executor = executor;
+    kmd = KeyMetadata.read(metadata);
     if (!isAcceptablePurpose(kmd.getPurpose())) {
       throw new KeyczarException(
           Messages.getString("Keyczar.UnacceptablePurpose", kmd.getPurpose()));
@@ -91,6 +153,10 @@ public abstract class Keyczar {
       throw new KeyczarException(
           Messages.getString("Keyczar.NeedEncryptedReader"));
     }
+    List<KeyVersion> eagerVersions = new ArrayList<KeyVersion>();
+    // Concurrent, so that loadPending can check it without taking the lock
+    Map<Integer, List<KeyVersion>> pending =
+        new ConcurrentHashMap<Integer, List<KeyVersion>>();
     for (KeyVersion version : kmd.getVersions()) {
       if (version.getStatus() == KeyStatus.PRIMARY) {
         if (primaryVersion != null) {
@@ -99,29 +165,167 @@ public abstract class Keyczar {
         }
         primaryVersion = version;
       }
-      String keyString = reader.getKey(version.getVersionNumber());
-      KeyczarKey key = kmd.getType().getBuilder().read(keyString);
-      LOG.debug(Messages.getString("Keyczar.ReadVersion", version));
-    
-    
-      //Add hash  
-      addKeyHashMap(key.hash(), key);
-      
-      //Add fall back hash(es)
-      for (byte[] h : key.fallbackHash()) {
-        addKeyHashMap(h, key);
+      int[] hints = version.getKeyHashes();
+      if (lazyKeys && version.getStatus() != KeyStatus.PRIMARY
+          && hints != null
+          && (previous == null || !previous.versionMap.containsKey(version))) {
+        for (int hint : hints) {
+          List<KeyVersion> versions = pending.get(hint);
+          if (versions == null) {
+            versions = new ArrayList<KeyVersion>();
+            pending.put(hint, versions);
+          }
+          versions.add(version);
+        }
+        continue;
       }
-      
-      versionMap.put(version, key);
+      eagerVersions.add(version);
     }
+
+    if (previous != null) {
+      streamPoolSize = previous.streamPoolSize;
+    }
+    KeyczarKey[] keys = readKeys(reader, eagerVersions, executor, previous);
+    KeyHashIndex.Builder hashes = new KeyHashIndex.Builder();
+    for (int i = 0; i < keys.length; i++) {
+      addLoadedKey(eagerVersions.get(i), keys[i], hashes);
+    }
+    hashIndex = hashes.build();
+    if (!pending.isEmpty()) {
+      lazyReader = reader;
+      pendingVersions = pending;
+      // A hash the index already knows must find every key that has it, so
+      // pending versions sharing it with a loaded key are loaded now
+      for (Integer hint : new ArrayList<Integer>(pending.keySet())) {
+        if (hashIndex.get(hint) != null) {
+          loadPending(hint);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the keys of the given versions and parses them, spreading the
+   * parsing across the executor if there is one. Keys the previous key set,
+   * if any, already has for a version are reused as they are, since the key
+   * of a version never changes, and so are keys handed over in memory by an
+   * {@link ImportedKeyReader}.
+   */
+  private KeyczarKey[] readKeys(KeyczarReader reader,
+      List<KeyVersion> versions, ExecutorService executor, Keyczar previous)
+      throws KeyczarException {
+    final KeyczarKey[] keys = new KeyczarKey[versions.size()];
+    final String[] keyStrings = new String[keys.length];
+    ImportedKeyReader imported = (reader instanceof ImportedKeyReader)
+        ? (ImportedKeyReader) reader : null;
+    for (int i = 0; i < keys.length; i++) {
+      if (previous != null) {
+        keys[i] = previous.versionMap.get(versions.get(i));
+      }
+      if (keys[i] == null && imported != null) {
+        keys[i] = imported.getImportedKey(versions.get(i).getVersionNumber());
+        if (keys[i].getType() != kmd.getType()) {
+          throw new KeyczarException(
+              Messages.getString("InvalidTypeInInput", keys[i].getType()));
+        }
+      }
+      if (keys[i] == null) {
+        keyStrings[i] = reader.getKey(versions.get(i).getVersionNumber());
+      }
+    }
+    final KeyType.Builder builder = kmd.getType().getBuilder();
+    ParallelTasks.run(executor, keys.length, new RangeTask() {
+      @Override
+      public void run(int from, int to) throws KeyczarException {
+        for (int i = from; i < to; i++) {
+          if (keyStrings[i] != null) {
+            keys[i] = builder.read(keyStrings[i]);
+          }
+        }
+      }
+    });
+    return keys;
   }
-  
-  private void addKeyHashMap(byte[] hash, KeyczarKey key){
-     KeyHash kHash = new KeyHash(hash);
-    if (hashMap.get(kHash) == null) {
-      hashMap.put(kHash, new ArrayList<KeyczarKey>());
+
+  /**
+   * Adds a parsed key to the version map and to the given index builder
+   * under its hash identifiers.
+   */
+  private void addLoadedKey(KeyVersion version, KeyczarKey key,
+      KeyHashIndex.Builder hashes) {
+    LOG.debug(Messages.getString("Keyczar.ReadVersion", version));
+    if (streamPoolSize > 0 && key.getStreamPool() == null) {
+      key.useStreamPool(streamPoolSize);
+    }
+
+    //Add hash  
+    hashes.add(key.hash(), key);
+    
+    //Add fall back hash(es)
+    for (byte[] h : key.fallbackHash()) {
+      hashes.add(h, key);
+    }
+    
+    versionMap.put(version, key);
+  }
+
+  /**
+   * Loads the pending versions whose metadata lists the given hash, and
+   * returns the keys now indexed under it.
+   */
+  private KeyczarKey[] loadPending(int hash) throws KeyczarException {
+    // Most misses are for hashes no version has, which needn't take the lock
+    Map<Integer, List<KeyVersion>> unlocked = pendingVersions;
+    if (unlocked == null || !unlocked.containsKey(hash)) {
+      return hashIndex.get(hash);
+    }
+    synchronized (lazyLock) {
+      Map<Integer, List<KeyVersion>> pending = pendingVersions;
+      if (pending == null || !pending.containsKey(hash)) {
+        return hashIndex.get(hash);
+      }
+      // Load the versions listed under the hash, and then every version
+      // sharing one of their hashes, so a hit in the index always finds all
+      // the keys with that hash
+      KeyHashIndex.Builder hashes = hashIndex.toBuilder();
+      Set<Integer> loadedHashes = new HashSet<Integer>();
+      Set<KeyVersion> loadedVersions = new HashSet<KeyVersion>();
+      List<Integer> toLoad = new ArrayList<Integer>();
+      toLoad.add(hash);
+      while (!toLoad.isEmpty()) {
+        Integer next = toLoad.remove(toLoad.size() - 1);
+        if (!loadedHashes.add(next)) {
+          continue;
+        }
+        List<KeyVersion> versions = new ArrayList<KeyVersion>();
+        for (KeyVersion version : pending.get(next)) {
+          if (loadedVersions.add(version)) {
+            versions.add(version);
+          }
+        }
+        KeyczarKey[] keys = readKeys(lazyReader, versions, null, null);
+        for (int i = 0; i < keys.length; i++) {
+          addLoadedKey(versions.get(i), keys[i], hashes);
+          // The hints read from the metadata, which loading doesn't change
+          for (int hint : versions.get(i).getKeyHashes()) {
+            if (pending.containsKey(hint)) {
+              toLoad.add(hint);
+            }
+          }
+        }
+      }
+      // Lookups check the pending map without the lock, so the keys are
+      // published before their hashes leave it
+      hashIndex = hashes.build();
+      for (Integer loadedHash : loadedHashes) {
+        pending.remove(loadedHash);
+      }
+      if (pending.isEmpty()) {
+        pendingVersions = null;
+        lazyReader = null;
+      }
+      return hashIndex.get(hash);
     }
-    hashMap.get(kHash).add(key);
   }
 
   /**
@@ -137,6 +341,10 @@ public abstract class Keyczar {
 
   @Override
   public String toString() {
+    Keyczar current = snapshot;
+    if (current != null) {
+      return current.toString();
+    }
     return kmd.toString();
   }
 
@@ -148,20 +356,171 @@ public abstract class Keyczar {
    * @param key KeyczarKey
    */
   void addKey(KeyVersion version, KeyczarKey key) {
-    addKeyHashMap(key.hash(), key);
+    if (streamPoolSize > 0) {
+      key.useStreamPool(streamPoolSize);
+    }
+    hashIndex = hashIndex.toBuilder().add(key.hash(), key).build();
     versionMap.put(version, key);
     kmd.addVersion(version);
   }
 
+  /**
+   * Serves the Streams of every key in this set from a bounded
+   * {@link StreamPool} instead of caching one Stream per thread. This caps the
+   * number of JCE objects held for each key version, which matters when many
+   * short-lived threads use the same key set. It should be called before this
+   * object is shared between threads.
+   *
+   * @param maxStreamsPerKey The maximum number of Streams per key version
+   */
+  public void useStreamPools(int maxStreamsPerKey) {
+    if (maxStreamsPerKey < 1) {
+      throw new IllegalArgumentException(
+          Messages.getString("StreamPool.InvalidSize", maxStreamsPerKey));
+    }
+    streamPoolSize = maxStreamsPerKey;
+    for (KeyczarKey key : versionMap.values()) {
+      key.useStreamPool(maxStreamsPerKey);
+    }
+    Keyczar current = snapshot;
+    if (current != null) {
+      current.useStreamPools(maxStreamsPerKey);
+    }
+  }
+
+  /**
+   * Returns the {@link StreamPool} of the given key version, which can be used
+   * to monitor its size, misses and wait times.
+   *
+   * @param versionNumber The version number of the key
+   * @return The pool for that version, or null if the version doesn't exist,
+   *         hasn't been loaded yet or {@link #useStreamPools(int)} hasn't
+   *         been called
+   */
+  public StreamPool getStreamPool(int versionNumber) {
+    Keyczar current = snapshot;
+    if (current != null) {
+      return current.getStreamPool(versionNumber);
+    }
+    KeyVersion version = kmd.getVersion(versionNumber);
+    if (version == null || versionMap.get(version) == null) {
+      return null;
+    }
+    return versionMap.get(version).getStreamPool();
+  }
+
   public KeyczarKey getPrimaryKey() {
+    Keyczar current = snapshot;
+    if (current != null) {
+      return current.getPrimaryKey();
+    }
     if (primaryVersion == null) {
       return null;
     }
     return versionMap.get(primaryVersion);
   }
 
-  Collection<KeyczarKey> getKey(byte[] hash) {
-    return hashMap.get(new KeyHash(hash));
+  /**
+   * Returns the keys whose hash identifier is stored at the given offset of
+   * an array, or null if there are none. Every lookup of a hash returns the
+   * same array, which must not be modified.
+   */
+  KeyczarKey[] getKey(byte[] hashBytes, int offset) throws KeyczarException {
+    Keyczar current = snapshot;
+    if (current != null) {
+      return current.getKey(hashBytes, offset);
+    }
+    KeyczarKey[] keys = hashIndex.get(hashBytes, offset);
+    if (keys == null && pendingVersions != null) {
+      keys = loadPending(Util.readInt(hashBytes, offset));
+    }
+    return keys;
+  }
+
+  /**
+   * Returns the keys whose hash identifier is stored at the given absolute
+   * offset of a buffer, without moving the buffer's position, or null if
+   * there are none.
+   */
+  KeyczarKey[] getKey(ByteBuffer buffer, int offset) throws KeyczarException {
+    Keyczar current = snapshot;
+    if (current != null) {
+      return current.getKey(buffer, offset);
+    }
+    KeyczarKey[] keys = hashIndex.get(buffer, offset);
+    if (keys == null && pendingVersions != null) {
+      keys = loadPending(Util.readInt(buffer, offset));
+    }
+    return keys;
+  }
+
+  /**
+   * Reloads this key set from the given reader if its metadata has changed.
+   * A new snapshot of the key set is built, reading and parsing only versions
+   * that aren't loaded yet, and then swapped in with a single volatile write.
+   * Operations that already looked up their keys finish with them; later
+   * ones use the new snapshot. If loading fails, the current keys stay in
+   * use.
+   *
+   * @param reader The reader to reload the key set from
+   * @return Whether a new snapshot was swapped in
+   * @throws KeyczarException If the key set can't be read or no longer has
+   * an acceptable purpose
+   */
+  boolean reloadFrom(KeyczarReader reader) throws KeyczarException {
+    synchronized (reloadLock) {
+      Keyczar current = (snapshot != null) ? snapshot : this;
+      String metadata = reader.getMetadata();
+      if (metadata.equals(current.loadedMetadata)) {
+        return false;
+      }
+      Keyczar next = new Snapshot(reader, metadata, current);
+      if (!isAcceptablePurpose(next.kmd.getPurpose())) {
+        throw new KeyczarException(Messages.getString(
+            "Keyczar.UnacceptablePurpose", next.kmd.getPurpose()));
+      }
+      snapshot = next;
+      LOG.debug(Messages.getString("Keyczar.Reloaded", next.kmd.getName()));
+      return true;
+    }
+  }
+
+  /**
+   * Reloads this key set from the given reader at a fixed rate on the given
+   * executor. Failed reloads are logged and leave the current keys in use.
+   *
+   * @return The future of the scheduled reloads, which can be used to cancel
+   * them
+   */
+  ScheduledFuture<?> scheduleReloadsFrom(final KeyczarReader reader,
+      ScheduledExecutorService executor, long period, TimeUnit unit) {
+    return executor.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          reloadFrom(reader);
+        } catch (KeyczarException e) {
+          LOG.warn(Messages.getString("Keyczar.ReloadFailed"), e);
+        }
+      }
+    }, period, period, unit);
+  }
+
+  /**
+   * A reloaded key set. It loads its keys the way the key set it replaces
+   * did, lazily or on its executor, and its purpose is checked by that key
+   * set.
+   */
+  private static final class Snapshot extends Keyczar {
+    Snapshot(KeyczarReader reader, String metadata, Keyczar previous)
+        throws KeyczarException {
+      super(reader, metadata, previous.lazyKeys, previous.executor, previous);
+    }
+
+    @Override
+    boolean isAcceptablePurpose(KeyPurpose purpose) {
+      return true;
+    }
   }
 
   /**
@@ -21,8 +21,10 @@ import org.keyczar.i18n.Messages;
 import org.keyczar.interfaces.KeyczarReader;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Reads metadata and key files from the given location.
@@ -31,7 +33,7 @@ import java.io.RandomAccessFile;
  *
  */
 public class KeyczarFileReader implements KeyczarReader {
-  private String location;
+  final String location;
   static final String META_FILE = "meta";
 
   public KeyczarFileReader(String fileLocation) {
@@ -57,13 +59,37 @@ public class KeyczarFileReader implements KeyczarReader {
     return readFile(location + META_FILE);
   }
 
-  private String readFile(String filename) throws KeyczarException {
+  String readFile(String filename) throws KeyczarException {
+    return new String(readFileBytes(filename));
+  }
+
+  /**
+   * Reads the whole of a file through its channel, reading until the end of
+   * the file rather than trusting a single read to fill the buffer.
+   */
+  static byte[] readFileBytes(String filename) throws KeyczarException {
     try {
-      RandomAccessFile file = new RandomAccessFile(filename, "r");
-      byte[] contents = new byte[(int) file.length()];
-      file.read(contents);
-      file.close();
-      return new String(contents);
+      FileInputStream input = new FileInputStream(filename);
+      try {
+        FileChannel channel = input.getChannel();
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+          throw new KeyczarException(
+              Messages.getString("Keyczar.FileTooLarge", size));
+        }
+        ByteBuffer contents = ByteBuffer.allocate((int) size);
+        while (contents.hasRemaining() && channel.read(contents) >= 0) {
+          // Keep reading until the buffer is full or the file ends
+        }
+        if (contents.hasRemaining()) {
+          byte[] shorter = new byte[contents.position()];
+          System.arraycopy(contents.array(), 0, shorter, 0, shorter.length);
+          return shorter;
+        }
+        return contents.array();
+      } finally {
+        input.close();
+      }
     } catch (IOException e) {
       throw new KeyczarException(
           Messages.getString("KeyczarFileReader.FileError", filename), e);
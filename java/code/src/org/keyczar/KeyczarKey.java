@@ -88,9 +88,62 @@ public abstract class KeyczarKey {
     return Util.toInt(this.hash());
   }
   
-  protected Stream cachedStream = null;
-  
-  protected abstract Stream getStream() throws KeyczarException;
+  /*
+   * JCE Cipher, Mac and Signature objects are stateful, so a single cached
+   * Stream can't be shared between threads. By default each thread lazily
+   * creates and keeps its own Stream for this key.
+   */
+  private volatile StreamCache streamCache = new StreamCache.PerThread(this);
+
+  /**
+   * Checks out a Stream for this key. The Stream must not be used after it
+   * has been handed back with {@link #releaseStream(Stream)}, and every
+   * checked out Stream must be released, typically in a finally block.
+   *
+   * @return A Stream for the exclusive use of the caller
+   * @throws KeyczarException If the Stream can't be created
+   */
+  protected Stream getStream() throws KeyczarException {
+    return streamCache.checkout();
+  }
+
+  /**
+   * Returns a Stream obtained from {@link #getStream()}.
+   *
+   * @param stream The Stream to release
+   */
+  void releaseStream(Stream stream) {
+    streamCache.release(stream);
+  }
+
+  /**
+   * Serves this key's Streams from a bounded pool rather than one per thread.
+   * This should be called before the key is shared between threads.
+   *
+   * @param maxSize The maximum number of Streams to create for this key
+   */
+  void useStreamPool(int maxSize) {
+    streamCache = new StreamPool(this, maxSize);
+  }
+
+  /**
+   * @return The pool serving this key's Streams, or null if Streams are
+   *         cached per thread
+   */
+  StreamPool getStreamPool() {
+    StreamCache cache = streamCache;
+    return (cache instanceof StreamPool) ? (StreamPool) cache : null;
+  }
+
+  /**
+   * Creates a new, uncached Stream for this key. Streams nested inside another
+   * Stream (e.g. the HMAC stream of an AES stream) should be created with this
+   * method so that they are owned by the enclosing Stream.
+   *
+   * @return A new Stream
+   * @throws KeyczarException If the underlying JCE objects can't be created
+   */
+  protected abstract Stream createStream() throws KeyczarException;
 
   /**
    * Return this key's type
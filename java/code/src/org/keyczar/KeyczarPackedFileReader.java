@@ -0,0 +1,166 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.i18n.Messages;
+import org.keyczar.interfaces.KeyczarReader;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads metadata and keys from a single packed key set file, as written by
+ * {@link KeyczarPackedFileWriter}. The file is memory-mapped once and closed,
+ * and entries are decoded from the mapping as they are requested.
+ *
+ * <p>The packed layout is:
+ * <pre>
+ *   magic "KZPK" | format version (1 byte) | entry count (4 bytes)
+ *   entry count * (id (4 bytes) | offset (4 bytes) | length (4 bytes))
+ *   entry data
+ * </pre>
+ * where all integers are big-endian, id 0 is the metadata and any other id is
+ * a key version number, and each entry holds the UTF-8 bytes of the string
+ * the directory layout keeps in the corresponding file.
+ *
+ * <p>Entries are handed to {@link Keyczar} as key strings and parsed exactly
+ * as the directory layout's files are, so each key costs as much to load as
+ * before. What the format saves is file system work: a key set is one file,
+ * opened once, instead of one file per version plus the metadata. Storing
+ * raw key material instead would skip the parsing but couldn't hold
+ * encrypted key sets, which are only ever available as strings.
+ */
+public class KeyczarPackedFileReader implements KeyczarReader {
+  static final byte[] MAGIC = {'K', 'Z', 'P', 'K'};
+  static final byte FORMAT_VERSION = 1;
+  static final int METADATA_ID = 0;
+  static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+  static final int ENTRY_SIZE = 12;
+  static final String ENCODING = "UTF-8";
+
+  private final String location;
+  private final ByteBuffer contents;
+  private final int[] ids;
+  private final int[] offsets;
+  private final int[] lengths;
+
+  public KeyczarPackedFileReader(String fileLocation) throws KeyczarException {
+    location = fileLocation;
+    contents = map(fileLocation);
+    try {
+      ByteBuffer header = contents.duplicate();
+      byte[] magic = new byte[MAGIC.length];
+      header.get(magic);
+      for (int i = 0; i < MAGIC.length; i++) {
+        if (magic[i] != MAGIC[i]) {
+          throw invalidFormat(null);
+        }
+      }
+      if (header.get() != FORMAT_VERSION) {
+        throw invalidFormat(null);
+      }
+      int count = header.getInt();
+      if (count < 0 || count > (header.remaining() / ENTRY_SIZE)) {
+        throw invalidFormat(null);
+      }
+      ids = new int[count];
+      offsets = new int[count];
+      lengths = new int[count];
+      for (int i = 0; i < count; i++) {
+        ids[i] = header.getInt();
+        offsets[i] = header.getInt();
+        lengths[i] = header.getInt();
+        if (offsets[i] < 0 || lengths[i] < 0
+            || offsets[i] > contents.limit() - lengths[i]) {
+          throw invalidFormat(null);
+        }
+      }
+    } catch (BufferUnderflowException e) {
+      throw invalidFormat(e);
+    }
+  }
+
+  @Override
+  public String getKey(int version) throws KeyczarException {
+    return readEntry(version);
+  }
+
+  @Override
+  public String getKey() throws KeyczarException {
+    KeyMetadata metadata = KeyMetadata.read(getMetadata());
+    return getKey(metadata.getPrimaryVersion().getVersionNumber());
+  }
+
+  @Override
+  public String getMetadata() throws KeyczarException {
+    return readEntry(METADATA_ID);
+  }
+
+  private String readEntry(int id) throws KeyczarException {
+    for (int i = 0; i < ids.length; i++) {
+      if (ids[i] == id) {
+        byte[] entry = new byte[lengths[i]];
+        ByteBuffer source = contents.duplicate();
+        source.position(offsets[i]);
+        source.get(entry);
+        try {
+          return new String(entry, ENCODING);
+        } catch (UnsupportedEncodingException e) {
+          throw new KeyczarException(e);
+        }
+      }
+    }
+    throw new KeyczarException(
+        Messages.getString("KeyczarPackedFileReader.MissingEntry", location, id));
+  }
+
+  private KeyczarException invalidFormat(Throwable cause) {
+    return new KeyczarException(
+        Messages.getString("KeyczarPackedFileReader.InvalidFormat", location),
+        cause);
+  }
+
+  /**
+   * Maps the whole file read-only. The mapping stays valid after the channel
+   * is closed, so no file descriptor is held for the life of the reader.
+   */
+  private static ByteBuffer map(String filename) throws KeyczarException {
+    try {
+      FileInputStream input = new FileInputStream(filename);
+      try {
+        FileChannel channel = input.getChannel();
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+          throw new KeyczarException(
+              Messages.getString("Keyczar.FileTooLarge", size));
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      } finally {
+        input.close();
+      }
+    } catch (IOException e) {
+      throw new KeyczarException(
+          Messages.getString("KeyczarFileReader.FileError", filename), e);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.i18n.Messages;
+import org.keyczar.interfaces.KeyczarReader;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a key set into a single packed file readable by
+ * {@link KeyczarPackedFileReader}. Entries are copied verbatim from the
+ * source reader, so encrypted key sets stay encrypted when packed.
+ */
+public class KeyczarPackedFileWriter {
+  private final String location;
+
+  public KeyczarPackedFileWriter(String fileLocation) {
+    location = fileLocation;
+  }
+
+  /**
+   * Packs the metadata and every key version available from the given reader.
+   *
+   * @param source Reader for the key set to pack
+   * @throws KeyczarException If the key set cannot be read or the packed file
+   *         cannot be written
+   */
+  public void write(KeyczarReader source) throws KeyczarException {
+    String metadata = source.getMetadata();
+    List<Integer> ids = new ArrayList<Integer>();
+    List<byte[]> entries = new ArrayList<byte[]>();
+    ids.add(KeyczarPackedFileReader.METADATA_ID);
+    entries.add(encode(metadata));
+    for (KeyVersion version : KeyMetadata.read(metadata).getVersions()) {
+      ids.add(version.getVersionNumber());
+      entries.add(encode(source.getKey(version.getVersionNumber())));
+    }
+
+    long size = KeyczarPackedFileReader.HEADER_SIZE
+        + (long) KeyczarPackedFileReader.ENTRY_SIZE * entries.size();
+    for (byte[] entry : entries) {
+      size += entry.length;
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new KeyczarException(
+          Messages.getString("Keyczar.FileTooLarge", size));
+    }
+
+    ByteBuffer packed = ByteBuffer.allocate((int) size);
+    packed.put(KeyczarPackedFileReader.MAGIC);
+    packed.put(KeyczarPackedFileReader.FORMAT_VERSION);
+    packed.putInt(entries.size());
+    int offset = KeyczarPackedFileReader.HEADER_SIZE
+        + KeyczarPackedFileReader.ENTRY_SIZE * entries.size();
+    for (int i = 0; i < entries.size(); i++) {
+      packed.putInt(ids.get(i));
+      packed.putInt(offset);
+      packed.putInt(entries.get(i).length);
+      offset += entries.get(i).length;
+    }
+    for (byte[] entry : entries) {
+      packed.put(entry);
+    }
+    packed.flip();
+
+    try {
+      FileOutputStream output = new FileOutputStream(location);
+      try {
+        FileChannel channel = output.getChannel();
+        while (packed.hasRemaining()) {
+          channel.write(packed);
+        }
+      } finally {
+        output.close();
+      }
+    } catch (IOException e) {
+      throw new KeyczarException(
+          Messages.getString("KeyczarTool.UnableToWrite", location), e);
+    }
+  }
+
+  private static byte[] encode(String entry) throws KeyczarException {
+    try {
+      return entry.getBytes(KeyczarPackedFileReader.ENCODING);
+    } catch (UnsupportedEncodingException e) {
+      throw new KeyczarException(e);
+    }
+  }
+}
@@ -16,6 +16,9 @@
 
 package org.keyczar;
 
+import java.nio.ByteBuffer;
+import java.security.Signature;
+import java.security.SignatureException;
 
 /**
  * A placeholder public key class. We would use an interface, except want public
@@ -28,4 +31,20 @@ public abstract class KeyczarPublicKey extends KeyczarKey {
   protected KeyczarPublicKey(int size) {
     super(size);
   }
+
+  /**
+   * Verifies the remaining bytes of a signature buffer without moving its
+   * position. Signature only accepts arrays, so a direct buffer's signature
+   * bytes are copied out; heap buffers are verified in place.
+   */
+  static boolean verifySignature(Signature signature, ByteBuffer sig)
+      throws SignatureException {
+    if (sig.hasArray()) {
+      return signature.verify(sig.array(), sig.arrayOffset() + sig.position(),
+          sig.remaining());
+    }
+    byte[] sigBytes = new byte[sig.remaining()];
+    sig.duplicate().get(sigBytes);
+    return signature.verify(sigBytes);
+  }
 }
\ No newline at end of file
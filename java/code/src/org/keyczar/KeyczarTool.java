@@ -18,6 +18,7 @@ package org.keyczar;
 
 import org.keyczar.enums.Command;
 import org.keyczar.enums.Flag;
+import org.keyczar.enums.HmacDigest;
 import org.keyczar.enums.KeyPurpose;
 import org.keyczar.enums.KeyStatus;
 import org.keyczar.enums.RsaPadding;
@@ -57,6 +58,8 @@ import java.util.HashMap;
  *   <li>use: encrypt a message with the specified key
  *   <li>import: load a key into a key set
  *   <li>export: extract a specified key version from a key set
+ *   <li>pack: convert a key set directory into a single packed file
+ *   <li>unpack: convert a packed key set file back into a directory
  * </ul>
  *
  * @author steveweis@gmail.com (Steve Weis)
@@ -136,7 +139,8 @@ public class KeyczarTool {
 
         switch (Command.getCommand(nonFlagArgs.get(0))) {
           case CREATE:
-            create(locationFlag, nameFlag, purposeFlag, asymmetricFlag);
+            create(locationFlag, nameFlag, purposeFlag, asymmetricFlag,
+                flagMap.get(Flag.DIGEST));
             break;
           case ADDKEY:
             addKey(locationFlag, statusFlag, crypterFlag, new KeyczarToolKeyParameters(flagMap));
@@ -172,6 +176,15 @@ public class KeyczarTool {
           case EXPORT_KEY:
             exportKey(locationFlag, crypterFlag, Integer.parseInt(versionFlag),
                 pemFileFlag, passphraseFlag);
+            break;
+          case PACK:
+            pack(locationFlag, destinationFlag);
+            break;
+          case UNPACK:
+            unpack(locationFlag, destinationFlag);
+            break;
+          case HASHKEYS:
+            hashKeys(locationFlag, crypterFlag);
         }
       } catch (Exception e) {
         e.printStackTrace();
@@ -377,6 +390,7 @@ public class KeyczarTool {
    * Creates a new KeyMetadata object, deciding its name, purpose and type
    * based on command line flags. Outputs its JSON representation in a file
    * named meta in the directory given by the location flag.
+   * @param digestFlag
    * @param asymmetricFlag
    * @param purposeFlag
    * @param nameFlag
@@ -385,7 +399,8 @@ public class KeyczarTool {
    * @throws KeyczarException if location or purpose flags are not set
    */
   private static void create(String locationFlag, String nameFlag,
-      KeyPurpose purposeFlag, String asymmetricFlag) throws KeyczarException {
+      KeyPurpose purposeFlag, String asymmetricFlag, String digestFlag)
+      throws KeyczarException {
     KeyMetadata kmd = null;
     if (purposeFlag == null) {
       throw new KeyczarException(
@@ -411,6 +426,9 @@ public class KeyczarTool {
             kmd = new KeyMetadata(nameFlag, KeyPurpose.SIGN_AND_VERIFY,
                 DefaultKeyType.DSA_PRIV);
           }
+        } else if (digestFlag != null) {
+          kmd = new KeyMetadata(nameFlag, KeyPurpose.SIGN_AND_VERIFY,
+              HmacDigest.getDigest(digestFlag).getKeyType());
         } else { // HMAC-SHA1
           kmd = new KeyMetadata(nameFlag, KeyPurpose.SIGN_AND_VERIFY,
               DefaultKeyType.HMAC_SHA1);
@@ -541,6 +559,103 @@ public class KeyczarTool {
     }
   }
 
+  /**
+   * Packs the key set at the given location into a single file at the
+   * destination. Key data is copied without decrypting or re-encoding it.
+   *
+   * @param locationFlag The location of the key set
+   * @param destinationFlag The packed file to write
+   * @throws KeyczarException if location or destination flag is not set or
+   * the key set cannot be read or written.
+   */
+  private static void pack(String locationFlag, String destinationFlag)
+      throws KeyczarException {
+    if (destinationFlag == null) {
+      throw new KeyczarException(
+          Messages.getString("KeyczarTool.MustDefineDestination"));
+    }
+    KeyczarReader reader = mock;
+    if (reader == null) {
+      if (locationFlag == null) {
+        throw new KeyczarException(Messages.getString(
+            "KeyczarTool.NeedLocation", Messages.getString("KeyczarTool.Location")));
+      }
+      reader = new KeyczarFileReader(locationFlag);
+    }
+    new KeyczarPackedFileWriter(destinationFlag).write(reader);
+  }
+
+  /**
+   * Unpacks the packed key set file at the given location into a key set
+   * directory at the destination.
+   *
+   * @param locationFlag The packed file to read
+   * @param destinationFlag The directory to write the key set to
+   * @throws KeyczarException if location or destination flag is not set or
+   * the key set cannot be read or written.
+   */
+  private static void unpack(String locationFlag, String destinationFlag)
+      throws KeyczarException {
+    if (locationFlag == null) {
+      throw new KeyczarException(Messages.getString("KeyczarTool.NeedLocation",
+          Messages.getString("KeyczarTool.Location")));
+    }
+    if (destinationFlag == null) {
+      throw new KeyczarException(
+          Messages.getString("KeyczarTool.MustDefineDestination"));
+    }
+    // The location flag has a separator appended, which File drops again
+    KeyczarReader reader =
+        new KeyczarPackedFileReader(new File(locationFlag).getPath());
+    File destination = new File(destinationFlag);
+    destination.mkdirs();
+    String metadata = reader.getMetadata();
+    writeFile(metadata, new File(destination, KeyczarFileReader.META_FILE));
+    for (KeyVersion version : KeyMetadata.read(metadata).getVersions()) {
+      int number = version.getVersionNumber();
+      writeFile(reader.getKey(number),
+          new File(destination, String.valueOf(number)));
+    }
+  }
+
+  /**
+   * Records the hash identifiers of every key in the metadata of the key set
+   * at the given location, which lets the key set be loaded lazily.
+   *
+   * @param locationFlag The location of the key set
+   * @param crypterFlag The location of a crypter to decrypt the key set, or
+   * null if it isn't encrypted
+   * @throws KeyczarException if location flag is not set or the key set
+   * cannot be read or written.
+   */
+  private static void hashKeys(String locationFlag, String crypterFlag)
+      throws KeyczarException {
+    GenericKeyczar genericKeyczar =
+        createGenericKeyczar(locationFlag, crypterFlag);
+    genericKeyczar.recordKeyHashes();
+    updateGenericKeyczar(genericKeyczar, crypterFlag, locationFlag);
+  }
+
+  /**
+   * Writes an unpacked entry in the encoding packed entries are stored in,
+   * so that packing and unpacking a key set round-trips its files exactly
+   * whatever the platform's default encoding is.
+   */
+  private static void writeFile(String data, File file)
+      throws KeyczarException {
+    try {
+      FileOutputStream output = new FileOutputStream(file);
+      try {
+        output.write(data.getBytes(KeyczarPackedFileReader.ENCODING));
+      } finally {
+        output.close();
+      }
+    } catch (IOException e) {
+      throw new KeyczarException(
+          Messages.getString("KeyczarTool.UnableToWrite", file), e);
+    }
+  }
+
   /**
    * Prints the usage instructions with list of commands and flags.
    */
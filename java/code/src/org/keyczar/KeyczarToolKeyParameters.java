@@ -1,10 +1,13 @@
 package org.keyczar;
 
+import org.keyczar.enums.CipherMode;
 import org.keyczar.enums.Flag;
+import org.keyczar.enums.HmacDigest;
 import org.keyczar.enums.RsaPadding;
 import org.keyczar.exceptions.KeyczarException;
 import org.keyczar.i18n.Messages;
-import org.keyczar.keyparams.AesKeyParameters;
+import org.keyczar.keyparams.AesModeKeyParameters;
+import org.keyczar.keyparams.HmacKeyParameters;
 import org.keyczar.keyparams.RsaKeyParameters;
 
 import java.util.HashMap;
@@ -17,7 +20,8 @@ import java.util.HashMap;
  *
  * @author swillden@google.com (Shawn Willden)
  */
-public class KeyczarToolKeyParameters implements AesKeyParameters, RsaKeyParameters {
+public class KeyczarToolKeyParameters
+    implements AesModeKeyParameters, HmacKeyParameters, RsaKeyParameters {
 
   private final HashMap<Flag, String> flagMap;
 
@@ -51,8 +55,60 @@ public class KeyczarToolKeyParameters implements AesKeyParameters, RsaKeyParamet
     }
   }
 
+  @Override
+  public int getTagSize() throws KeyczarException {
+    if (flagMap.containsKey(Flag.TAGSIZE)) {
+      try {
+        return Integer.parseInt(flagMap.get(Flag.TAGSIZE));
+      } catch (NumberFormatException e) {
+        throw new KeyczarException(Messages.getString(
+            "KeyczarTool.InvalidTagSize", flagMap.get(Flag.TAGSIZE)), e);
+      }
+    } else {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the HMAC digest named by the digest flag, or HMAC-SHA1 if the
+   * flag is absent.
+   */
+  public HmacDigest getHmacDigest() throws KeyczarException {
+    String digestFlag = flagMap.get(Flag.DIGEST);
+    if (digestFlag == null) {
+      return HmacDigest.SHA1;
+    }
+    return HmacDigest.getDigest(digestFlag);
+  }
+
   @Override
   public HmacKey getHmacKey() throws KeyczarException {
-    return HmacKey.generate(DefaultKeyType.HMAC_SHA1.applyDefaultParameters(null));
+    // The AES key size flag doesn't apply to the embedded HMAC key; only the
+    // digest and tag size are passed on
+    HmacKeyParameters hmacParams = new HmacKeyParameters() {
+      @Override
+      public int getKeySize() {
+        return -1;
+      }
+
+      @Override
+      public int getTagSize() throws KeyczarException {
+        return KeyczarToolKeyParameters.this.getTagSize();
+      }
+    };
+    return (HmacKey) getHmacDigest().getKeyType().getBuilder().generate(hmacParams);
+  }
+
+  @Override
+  public CipherMode getCipherMode() throws KeyczarException {
+    String modeFlag = flagMap.get(Flag.MODE);
+    try {
+      if (modeFlag != null) {
+        return CipherMode.valueOf(modeFlag.toUpperCase());
+      }
+    } catch (IllegalArgumentException e) {
+      throw new KeyczarException(Messages.getString("InvalidCipherMode", modeFlag));
+    }
+    return null;
   }
 }
@@ -8,7 +8,6 @@ import org.keyczar.exceptions.KeyczarException;
 import org.keyczar.interfaces.KeyType;
 import org.keyczar.interfaces.KeyczarReader;
 import org.keyczar.keyparams.KeyParameters;
-import org.keyczar.util.Util;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -48,7 +47,7 @@ public class MockKeyczarReader implements KeyczarReader {
 
   @Override
   public String getMetadata() {
-    return Util.gson().toJson(kmd);
+    return kmd.toString();
   }
 
   public void setMetadata(KeyMetadata newKmd) {
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs indexed work items on an ExecutorService. The items are split into a
+ * few contiguous ranges per processor, so that each task can check out a key
+ * stream once and reuse it for its whole range.
+ */
+final class ParallelTasks {
+  private static final int TASKS_PER_PROCESSOR = 4;
+
+  /**
+   * Work on the items in [from, to).
+   */
+  interface RangeTask {
+    void run(int from, int to) throws KeyczarException;
+  }
+
+  private ParallelTasks() {
+  }
+
+  /**
+   * Runs the task over the items [0, count), waiting for all of it to finish.
+   * Runs on the calling thread if there is no executor or at most one item.
+   *
+   * @throws KeyczarException The first exception thrown by any range
+   */
+  static void run(ExecutorService executor, int count, final RangeTask task)
+      throws KeyczarException {
+    int taskCount = Math.min(count,
+        Runtime.getRuntime().availableProcessors() * TASKS_PER_PROCESSOR);
+    if (executor == null || taskCount < 2) {
+      task.run(0, count);
+      return;
+    }
+
+    List<Callable<Void>> callables = new ArrayList<Callable<Void>>(taskCount);
+    for (int i = 0; i < taskCount; i++) {
+      final int from = (int) ((long) count * i / taskCount);
+      final int to = (int) ((long) count * (i + 1) / taskCount);
+      callables.add(new Callable<Void>() {
+        @Override
+        public Void call() throws KeyczarException {
+          task.run(from, to);
+          return null;
+        }
+      });
+    }
+    try {
+      for (Future<Void> future : executor.invokeAll(callables)) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new KeyczarException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof KeyczarException) {
+        throw (KeyczarException) e.getCause();
+      }
+      throw new KeyczarException(e.getCause());
+    }
+  }
+}
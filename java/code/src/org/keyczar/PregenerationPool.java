@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import org.apache.log4j.Logger;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.i18n.Messages;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of objects that are expensive to create, kept full by a
+ * task on a background executor so that callers can take one without paying
+ * for its creation. Callers that find the queue empty create one themselves
+ * rather than wait, so the pool never makes a caller slower.
+ *
+ * @param <T> The type of object pre-generated
+ */
+class PregenerationPool<T> {
+  private static final Logger LOG = Logger.getLogger(PregenerationPool.class);
+
+  /**
+   * Creates the pooled objects.
+   */
+  interface Generator<T> {
+    T generate() throws KeyczarException;
+  }
+
+  private final Generator<T> generator;
+  private final ExecutorService executor;
+  private final BlockingQueue<T> ready;
+  // Set while a fill task is queued or running, so only one runs at a time
+  private final AtomicBoolean filling = new AtomicBoolean();
+  private final AtomicLong misses = new AtomicLong();
+
+  private final Runnable fillTask = new Runnable() {
+    @Override
+    public void run() {
+      boolean failed = false;
+      try {
+        while (ready.remainingCapacity() > 0) {
+          ready.offer(generator.generate());
+        }
+      } catch (KeyczarException e) {
+        failed = true;
+        LOG.warn(Messages.getString("PregenerationPool.GenerationFailed"), e);
+      } finally {
+        filling.set(false);
+      }
+      if (!failed) {
+        // Catch any take that raced with the end of this task
+        refill();
+      }
+    }
+  };
+
+  /**
+   * Creates a pool and starts filling it.
+   *
+   * @param generator Creates the pooled objects
+   * @param size The number of objects to keep ready
+   * @param executor The executor to create objects on
+   */
+  PregenerationPool(Generator<T> generator, int size,
+      ExecutorService executor) {
+    if (size < 1) {
+      throw new IllegalArgumentException(
+          Messages.getString("PregenerationPool.InvalidSize", size));
+    }
+    this.generator = generator;
+    this.executor = executor;
+    this.ready = new ArrayBlockingQueue<T>(size);
+    refill();
+  }
+
+  /**
+   * Takes a pre-generated object, or creates one on the calling thread if
+   * none is ready, and makes sure the pool is being refilled.
+   */
+  T take() throws KeyczarException {
+    T item = ready.poll();
+    refill();
+    if (item == null) {
+      misses.incrementAndGet();
+      item = generator.generate();
+    }
+    return item;
+  }
+
+  private void refill() {
+    if (ready.remainingCapacity() > 0 && filling.compareAndSet(false, true)) {
+      try {
+        executor.execute(fillTask);
+      } catch (RejectedExecutionException e) {
+        // The executor has been shut down, so callers create their own
+        filling.set(false);
+      }
+    }
+  }
+
+  /**
+   * @return The number of objects currently ready to be taken
+   */
+  int getReadyCount() {
+    return ready.size();
+  }
+
+  /**
+   * @return The number of takes that found nothing ready
+   */
+  long getMissCount() {
+    return misses.get();
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.interfaces.KeyczarReader;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Signer} that picks up changes to its key set, such as a new
+ * primary key after a rotation, without being rebuilt. Each reload builds an
+ * immutable snapshot of the key set, reusing the keys of versions that are
+ * already loaded, and swaps it in atomically. Operations in flight finish
+ * with the keys they started with, and no operation ever waits on a reload.
+ *
+ * <p>Reloads happen when {@link #reload()} is called, or periodically once
+ * {@link #scheduleReloads} has been called.
+ */
+public class ReloadingSigner extends Signer {
+  private final KeyczarReader reader;
+
+  /**
+   * Initialize a new ReloadingSigner with a KeyczarReader, which is kept to
+   * reload the key set from. The corresponding key set must have a purpose
+   * {@link org.keyczar.enums.KeyPurpose#SIGN_AND_VERIFY}.
+   *
+   * @param reader A reader to read keys from
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   */
+  public ReloadingSigner(KeyczarReader reader) throws KeyczarException {
+    super(reader);
+    this.reader = reader;
+  }
+
+  /**
+   * Initialize a new ReloadingSigner with a KeyczarReader, which is kept to
+   * reload the key set from. If lazyKeys is set, non-primary versions with
+   * key hashes in the metadata are read the first time one of their hashes
+   * is used, both when the key set is first loaded and after each reload.
+   *
+   * @param reader A reader to read keys from
+   * @param lazyKeys Whether to defer reading non-primary keys
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   */
+  public ReloadingSigner(KeyczarReader reader, boolean lazyKeys)
+      throws KeyczarException {
+    super(reader, lazyKeys);
+    this.reader = reader;
+  }
+
+  /**
+   * Initialize a new ReloadingSigner with a key set location. This will attempt to
+   * read and reload the keys using a KeyczarFileReader.
+   *
+   * @param fileLocation Directory containing a key set
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   */
+  public ReloadingSigner(String fileLocation) throws KeyczarException {
+    this(new KeyczarFileReader(fileLocation));
+  }
+
+  /**
+   * Reloads the key set if its metadata has changed.
+   *
+   * @return Whether new keys were swapped in
+   * @throws KeyczarException If the key set can't be read, in which case the
+   * current keys stay in use
+   */
+  public boolean reload() throws KeyczarException {
+    return reloadFrom(reader);
+  }
+
+  /**
+   * Reloads the key set at a fixed rate on the given executor. Failed
+   * reloads are logged and leave the current keys in use.
+   *
+   * @param executor The executor to run reloads on
+   * @param period The time between reloads
+   * @param unit The unit of the period
+   * @return The future of the scheduled reloads, which can be cancelled to
+   * stop them
+   */
+  public ScheduledFuture<?> scheduleReloads(ScheduledExecutorService executor,
+      long period, TimeUnit unit) {
+    return scheduleReloadsFrom(reader, executor, period, unit);
+  }
+}
@@ -20,6 +20,8 @@ import static org.keyczar.util.Util.decodeBigInteger;
 import static org.keyczar.util.Util.encodeBigInteger;
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.keyczar.enums.RsaPadding;
 import org.keyczar.exceptions.KeyczarException;
@@ -32,6 +34,7 @@ import org.keyczar.interfaces.VerifyingStream;
 import org.keyczar.keyparams.RsaKeyParameters;
 import org.keyczar.util.Util;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
@@ -66,14 +69,74 @@ public class RsaPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
 
   private RSAPrivateCrtKey jcePrivateKey;
 
+  static final JsonCodec<RsaPrivateKey> JSON_CODEC =
+      new JsonCodec<RsaPrivateKey>() {
+    @Override
+    RsaPrivateKey read(JsonReader in) throws IOException {
+      RsaPublicKey publicKey = null;
+      String privateExponent = null;
+      String primeP = null;
+      String primeQ = null;
+      String primeExponentP = null;
+      String primeExponentQ = null;
+      String crtCoefficient = null;
+      int size = 0;
+      in.beginObject();
+      while (in.hasNext()) {
+        String name = in.nextName();
+        if (name.equals("publicKey")) {
+          publicKey = nextValue(in, RsaPublicKey.JSON_CODEC);
+        } else if (name.equals("privateExponent")) {
+          privateExponent = nextString(in);
+        } else if (name.equals("primeP")) {
+          primeP = nextString(in);
+        } else if (name.equals("primeQ")) {
+          primeQ = nextString(in);
+        } else if (name.equals("primeExponentP")) {
+          primeExponentP = nextString(in);
+        } else if (name.equals("primeExponentQ")) {
+          primeExponentQ = nextString(in);
+        } else if (name.equals("crtCoefficient")) {
+          crtCoefficient = nextString(in);
+        } else if (name.equals("size")) {
+          size = in.nextInt();
+        } else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return new RsaPrivateKey(size, publicKey, privateExponent, primeP,
+          primeQ, primeExponentP, primeExponentQ, crtCoefficient);
+    }
+
+    @Override
+    void write(JsonWriter out, RsaPrivateKey key) throws IOException {
+      out.beginObject();
+      writeValue(out, "publicKey", key.publicKey, RsaPublicKey.JSON_CODEC);
+      writeString(out, "privateExponent", key.privateExponent);
+      writeString(out, "primeP", key.primeP);
+      writeString(out, "primeQ", key.primeQ);
+      writeString(out, "primeExponentP", key.primeExponentP);
+      writeString(out, "primeExponentQ", key.primeExponentQ);
+      writeString(out, "crtCoefficient", key.crtCoefficient);
+      out.name("size").value(key.size);
+      out.endObject();
+    }
+  };
+
   static RsaPrivateKey generate(RsaKeyParameters params) throws KeyczarException {
     KeyPair keyPair = Util.generateKeyPair(KEY_GEN_ALGORITHM, params.getKeySize());
     return new RsaPrivateKey((RSAPrivateCrtKey) keyPair.getPrivate(),
         (params.getRsaPadding() == null) ? RsaPadding.OAEP : params.getRsaPadding());
   }
 
+  @Override
+  public String toString() {
+    return JSON_CODEC.encode(this);
+  }
+
   public static RsaPrivateKey read(String input) throws KeyczarException {
-    RsaPrivateKey key = Util.gson().fromJson(input, RsaPrivateKey.class);
+    RsaPrivateKey key = JSON_CODEC.decode(input);
     return key.initFromJson();
   }
 
@@ -89,24 +152,24 @@ public class RsaPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
     jcePrivateKey = privateKey;
   }
 
-  private RsaPrivateKey() {
-    super(0);
-    publicKey = null;
-    privateExponent = null;
-    primeP = null;
-    primeQ = null;
-    primeExponentP = null;
-    primeExponentQ = null;
-    crtCoefficient = null;
+  // Used when reading from JSON, which initializes the JCE key afterwards
+  private RsaPrivateKey(int size, RsaPublicKey publicKey,
+      String privateExponent, String primeP, String primeQ,
+      String primeExponentP, String primeExponentQ, String crtCoefficient) {
+    super(size);
+    this.publicKey = publicKey;
+    this.privateExponent = privateExponent;
+    this.primeP = primeP;
+    this.primeQ = primeQ;
+    this.primeExponentP = primeExponentP;
+    this.primeExponentQ = primeExponentQ;
+    this.crtCoefficient = crtCoefficient;
     jcePrivateKey = null;
   }
 
   @Override
-  protected Stream getStream() throws KeyczarException {
-    if (cachedStream == null) {
-      cachedStream = new RsaPrivateStream();
-    }
-    return cachedStream;
+  protected Stream createStream() throws KeyczarException {
+    return new RsaPrivateStream();
   }
 
   @Override
@@ -163,9 +226,9 @@ public class RsaPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
     public RsaPrivateStream() throws KeyczarException {
       try {
         signature = Signature.getInstance(SIG_ALGORITHM);
-        verifyingStream = (VerifyingStream) publicKey.getStream();
+        verifyingStream = (VerifyingStream) publicKey.createStream();
         cipher = Cipher.getInstance(publicKey.getPadding().getCryptAlgorithm());
-        encryptingStream = (EncryptingStream) publicKey.getStream();
+        encryptingStream = (EncryptingStream) publicKey.createStream();
       } catch (GeneralSecurityException e) {
         throw new KeyczarException(e);
       }
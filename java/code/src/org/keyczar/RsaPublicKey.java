@@ -18,10 +18,13 @@ package org.keyczar;
 
 
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.keyczar.enums.RsaPadding;
 import org.keyczar.exceptions.KeyczarException;
 import org.keyczar.exceptions.UnsupportedTypeException;
+import org.keyczar.i18n.Messages;
 import org.keyczar.interfaces.EncryptingStream;
 import org.keyczar.interfaces.KeyType;
 import org.keyczar.interfaces.SigningStream;
@@ -30,6 +33,7 @@ import org.keyczar.interfaces.VerifyingStream;
 import org.keyczar.util.Util;
 
 import java.math.BigInteger;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
@@ -62,8 +66,51 @@ public class RsaPublicKey extends KeyczarPublicKey {
 
   private final byte[] hash = new byte[Keyczar.KEY_HASH_SIZE];
 
+  static final JsonCodec<RsaPublicKey> JSON_CODEC =
+      new JsonCodec<RsaPublicKey>() {
+    @Override
+    RsaPublicKey read(JsonReader in) throws IOException {
+      String modulus = null;
+      String publicExponent = null;
+      RsaPadding padding = null;
+      int size = 0;
+      in.beginObject();
+      while (in.hasNext()) {
+        String name = in.nextName();
+        if (name.equals("modulus")) {
+          modulus = nextString(in);
+        } else if (name.equals("publicExponent")) {
+          publicExponent = nextString(in);
+        } else if (name.equals("padding")) {
+          padding = nextEnum(in, RsaPadding.class);
+        } else if (name.equals("size")) {
+          size = in.nextInt();
+        } else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return new RsaPublicKey(size, modulus, publicExponent, padding);
+    }
+
+    @Override
+    void write(JsonWriter out, RsaPublicKey key) throws IOException {
+      out.beginObject();
+      writeString(out, "modulus", key.modulus);
+      writeString(out, "publicExponent", key.publicExponent);
+      writeEnum(out, "padding", key.padding);
+      out.name("size").value(key.size);
+      out.endObject();
+    }
+  };
+
+  @Override
+  public String toString() {
+    return JSON_CODEC.encode(this);
+  }
+
   static RsaPublicKey read(String input) throws KeyczarException {
-    RsaPublicKey key = Util.gson().fromJson(input, RsaPublicKey.class);
+    RsaPublicKey key = JSON_CODEC.decode(input);
 
     if (key.getType() != DefaultKeyType.RSA_PUB) {
       throw new UnsupportedTypeException(key.getType());
@@ -83,11 +130,8 @@ public class RsaPublicKey extends KeyczarPublicKey {
 
 
   @Override
-  protected Stream getStream() throws KeyczarException {
-    if (cachedStream == null) {
-      cachedStream = new RsaStream();
-    }
-    return cachedStream;
+  protected Stream createStream() throws KeyczarException {
+    return new RsaStream();
   }
 
   @Override
@@ -108,11 +152,13 @@ public class RsaPublicKey extends KeyczarPublicKey {
     initializeHash();
   }
 
-  // Used by GSON, which will overwrite the values set here.
-  private RsaPublicKey() {
-    super(0);
-    modulus = publicExponent = null;
-    padding = null;
+  // Used when reading from JSON, which initializes the JCE key afterwards
+  private RsaPublicKey(int size, String modulus, String publicExponent,
+      RsaPadding padding) {
+    super(size);
+    this.modulus = modulus;
+    this.publicExponent = publicExponent;
+    this.padding = padding;
   }
 
   private RsaPublicKey(BigInteger mod, BigInteger exp, RsaPadding padding) {
@@ -195,25 +241,32 @@ public class RsaPublicKey extends KeyczarPublicKey {
     public int doFinalEncrypt(ByteBuffer input, ByteBuffer output)
         throws KeyczarException {
       try {
-        final int ciphertextSize = cipher.getOutputSize(input.limit());
-        final int outputCapacity = output.limit() - output.position();
-
-        ByteBuffer tmpOutput = ByteBuffer.allocate(ciphertextSize);
-        cipher.doFinal(input, tmpOutput);
+        final int ciphertextSize = cipher.getOutputSize(input.remaining());
+        final int outputCapacity = output.remaining();
 
         if (ciphertextSize == outputCapacity) {
-          output.put(tmpOutput.array());
+          // Encrypt straight into the output, which may be a direct buffer
+          cipher.doFinal(input, output);
 
-        } else if (ciphertextSize == (outputCapacity + 1)
-            && tmpOutput.array()[ciphertextSize - 1] == 0) {
+        } else if (ciphertextSize == (outputCapacity + 1)) {
           // There exists at least one JCE (the one IBM ships with some versions of
           // Websphere) which outputs ciphertext that's one byte too long, appending
           // a trailing zero.  We need to trim this byte.
-          output.put(tmpOutput.array(), 0, outputCapacity);
+          ByteBuffer tmpOutput = ByteBuffer.allocate(ciphertextSize);
+          cipher.doFinal(input, tmpOutput);
+          if (tmpOutput.get(ciphertextSize - 1) != 0) {
+            throw new KeyczarException(Messages.getString(
+                "RsaPublicKey.UnexpectedCiphertextSize", outputCapacity,
+                ciphertextSize));
+          }
+          tmpOutput.flip();
+          tmpOutput.limit(outputCapacity);
+          output.put(tmpOutput);
 
         } else {
-          throw new KeyczarException("Expected " + outputCapacity + " bytes from encryption "
-              + "operation but got " + ciphertextSize);
+          throw new KeyczarException(Messages.getString(
+              "RsaPublicKey.UnexpectedCiphertextSize", outputCapacity,
+              ciphertextSize));
         }
 
         return outputCapacity;
@@ -293,8 +346,7 @@ public class RsaPublicKey extends KeyczarPublicKey {
     @Override
     public boolean verify(ByteBuffer sig) throws KeyczarException {
       try {
-        return signature.verify(sig.array(), sig.position(), sig.limit()
-            - sig.position());
+        return verifySignature(signature, sig);
       } catch (GeneralSecurityException e) {
         throw new KeyczarException(e);
       }
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import org.keyczar.annotations.Experimental;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.i18n.Messages;
+import org.keyczar.util.Base64Coder;
+import org.keyczar.util.Clock;
+import org.keyczar.util.SystemClock;
+import org.keyczar.util.Util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of ready-to-use session objects, keyed by a digest of the
+ * session material they were built from. Building one means decrypting the
+ * session material with a private key, so receivers that see many messages
+ * per session should fetch them from a cache rather than constructing them
+ * for every message.
+ *
+ * Entries expire a fixed time after they were built, and once the cache is
+ * full the least recently used entry is evicted. The cache keeps counters
+ * that can be exported to monitor how well it is working.
+ *
+ * @param <V> The type of session object cached
+ * @see SessionCrypterCache
+ * @see SignedSessionDecrypterCache
+ */
+@Experimental
+public abstract class SessionCache<V> {
+  private final int maxSize;
+  private final long ttlMillis;
+  private Clock clock = new SystemClock();
+  // In access order, so the eldest entry is the least recently used. Guarded
+  // by its own lock.
+  private final LinkedHashMap<String, Entry<V>> entries =
+    new LinkedHashMap<String, Entry<V>>(16, 0.75f, true);
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+
+  private static final class Entry<V> {
+    final byte[] sessionMaterial;
+    final V value;
+    final long created;
+
+    Entry(byte[] sessionMaterial, V value, long created) {
+      this.sessionMaterial = sessionMaterial;
+      this.value = value;
+      this.created = created;
+    }
+  }
+
+  SessionCache(int maxSize, long ttl, TimeUnit unit) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException(
+          Messages.getString("SessionCache.InvalidSize", maxSize));
+    }
+    if (ttl <= 0) {
+      throw new IllegalArgumentException(
+          Messages.getString("SessionCache.InvalidTimeToLive", ttl));
+    }
+    this.maxSize = maxSize;
+    this.ttlMillis = unit.toMillis(ttl);
+  }
+
+  /**
+   * Builds the session object for the given session material.
+   */
+  abstract V create(byte[] sessionMaterial) throws KeyczarException;
+
+  /**
+   * Returns the cached session object for the given session material, or
+   * builds and caches one. Concurrent misses for the same material may each
+   * build an object, in which case only the last one built stays cached.
+   */
+  V get(byte[] sessionMaterial) throws KeyczarException {
+    String digest = Base64Coder.encodeWebSafe(Util.hash(sessionMaterial));
+    synchronized (entries) {
+      Entry<V> entry = entries.get(digest);
+      if (entry != null) {
+        if (isExpired(entry)) {
+          entries.remove(digest);
+          expirations.incrementAndGet();
+        } else if (Arrays.equals(entry.sessionMaterial, sessionMaterial)) {
+          hits.incrementAndGet();
+          return entry.value;
+        }
+      }
+    }
+
+    misses.incrementAndGet();
+    V value = create(sessionMaterial);
+    Entry<V> entry =
+        new Entry<V>(sessionMaterial.clone(), value, clock.now());
+    synchronized (entries) {
+      entries.put(digest, entry);
+      evictExpired();
+      Iterator<Entry<V>> eldest = entries.values().iterator();
+      while (entries.size() > maxSize) {
+        eldest.next();
+        eldest.remove();
+        evictions.incrementAndGet();
+      }
+    }
+    return value;
+  }
+
+  private boolean isExpired(Entry<V> entry) {
+    return clock.now() - entry.created >= ttlMillis;
+  }
+
+  /**
+   * Drops expired entries from the least recently used end, stopping at the
+   * first live one. Must be called holding the lock on entries.
+   */
+  private void evictExpired() {
+    Iterator<Map.Entry<String, Entry<V>>> iterator =
+        entries.entrySet().iterator();
+    while (iterator.hasNext() && isExpired(iterator.next().getValue())) {
+      iterator.remove();
+      expirations.incrementAndGet();
+    }
+  }
+
+  /**
+   * Removes every entry from the cache. The counters are kept.
+   */
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  /**
+   * Sets the clock used to expire entries.
+   *
+   * @param clock A clock to use for getting the current time
+   */
+  void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * @return The maximum number of entries this cache holds
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return The number of entries currently cached, including any that have
+   *         expired but not yet been removed
+   */
+  public int getSize() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return The number of lookups answered from the cache
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return The number of lookups that had to build a session object
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return The number of entries evicted to keep the cache within its size
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /**
+   * @return The number of entries dropped because they expired
+   */
+  public long getExpirationCount() {
+    return expirations.get();
+  }
+}
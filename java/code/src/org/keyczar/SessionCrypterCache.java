@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import org.keyczar.annotations.Experimental;
+import org.keyczar.exceptions.KeyczarException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of {@link SessionCrypter}s for receivers of session encrypted data.
+ * Use {@link #get(byte[])} in place of
+ * {@code new SessionCrypter(crypter, sessionMaterial)} so that the session
+ * key is decrypted once per session rather than once per message.
+ */
+@Experimental
+public class SessionCrypterCache extends SessionCache<SessionCrypter> {
+  private final Crypter crypter;
+
+  /**
+   * @param crypter The crypter to decrypt session material with
+   * @param maxSize The maximum number of sessions to cache
+   * @param ttl How long a session stays cached after it is first seen
+   * @param unit The unit of ttl
+   */
+  public SessionCrypterCache(Crypter crypter, int maxSize, long ttl,
+      TimeUnit unit) {
+    super(maxSize, ttl, unit);
+    this.crypter = crypter;
+  }
+
+  /**
+   * Returns a session crypter for the given session material, decrypting it
+   * only if it isn't cached.
+   *
+   * @param sessionMaterial An encrypted symmetric key to decrypt
+   * @return A session crypter using that key
+   * @throws KeyczarException If there is an error during decryption
+   */
+  public SessionCrypter get(byte[] sessionMaterial) throws KeyczarException {
+    return super.get(sessionMaterial);
+  }
+
+  @Override
+  SessionCrypter create(byte[] sessionMaterial) throws KeyczarException {
+    return new SessionCrypter(crypter, sessionMaterial);
+  }
+}
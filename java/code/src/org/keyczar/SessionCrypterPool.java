@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import org.keyczar.annotations.Experimental;
+import org.keyczar.exceptions.KeyczarException;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Pre-generates {@link SessionCrypter}s on a background executor, so that
+ * opening a session doesn't generate a session key and encrypt it with a
+ * public key on the caller's thread. Use {@link #newSessionCrypter()} in
+ * place of {@code new SessionCrypter(encrypter)}.
+ */
+@Experimental
+public class SessionCrypterPool {
+  private final PregenerationPool<SessionCrypter> pool;
+
+  /**
+   * Creates a pool and starts filling it.
+   *
+   * @param encrypter The encrypter used to encrypt session keys
+   * @param size The number of session crypters to keep ready
+   * @param executor The executor to generate session crypters on
+   */
+  public SessionCrypterPool(final Encrypter encrypter, int size,
+      ExecutorService executor) {
+    pool = new PregenerationPool<SessionCrypter>(
+        new PregenerationPool.Generator<SessionCrypter>() {
+          @Override
+          public SessionCrypter generate() throws KeyczarException {
+            return new SessionCrypter(encrypter);
+          }
+        }, size, executor);
+  }
+
+  /**
+   * Returns a new session crypter, taken from the pool if one is ready.
+   *
+   * @return A session crypter with a fresh session key
+   * @throws KeyczarException If there is an error generating a session
+   */
+  public SessionCrypter newSessionCrypter() throws KeyczarException {
+    return pool.take();
+  }
+
+  /**
+   * @return The number of session crypters currently ready
+   */
+  public int getReadyCount() {
+    return pool.getReadyCount();
+  }
+
+  /**
+   * @return The number of requests that found no session crypter ready and
+   *         generated one on the calling thread
+   */
+  public long getMissCount() {
+    return pool.getMissCount();
+  }
+}
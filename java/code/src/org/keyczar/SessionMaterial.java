@@ -16,11 +16,15 @@
 
 package org.keyczar;
 
+import com.google.gson.JsonParseException;
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.keyczar.annotations.Experimental;
 import org.keyczar.exceptions.KeyczarException;
-import org.keyczar.util.Util;
+
+import java.io.IOException;
 
 /**
  * Data used for session based encryption. This consists of 
@@ -35,6 +39,35 @@ import org.keyczar.util.Util;
  */
 @Experimental
 public class SessionMaterial {
+  private static final JsonCodec<SessionMaterial> JSON_CODEC =
+      new JsonCodec<SessionMaterial>() {
+    @Override
+    SessionMaterial read(JsonReader in) throws IOException {
+      SessionMaterial material = new SessionMaterial();
+      in.beginObject();
+      while (in.hasNext()) {
+        String name = in.nextName();
+        if (name.equals("key")) {
+          material.key = nextValue(in, AesKey.JSON_CODEC);
+        } else if (name.equals("nonce")) {
+          material.nonce = nextString(in);
+        } else {
+          in.skipValue();
+        }
+      }
+      in.endObject();
+      return material;
+    }
+
+    @Override
+    void write(JsonWriter out, SessionMaterial material) throws IOException {
+      out.beginObject();
+      writeValue(out, "key", material.key, AesKey.JSON_CODEC);
+      writeString(out, "nonce", material.nonce);
+      out.endObject();
+    }
+  };
+
   @Expose private AesKey key = null;
   @Expose private String nonce = ""; // encoded
   
@@ -61,10 +94,24 @@ public class SessionMaterial {
   
   @Override
   public String toString() {
-    return Util.gson().toJson(this);
+    return JSON_CODEC.encode(this);
   }
   
+  /**
+   * Reads session material, initializing its key so that it can be handed
+   * to a Crypter as it is.
+   *
+   * @throws JsonParseException If the string is not valid session material
+   */
   public static SessionMaterial read(String sessionString) {
-    return Util.gson().fromJson(sessionString, SessionMaterial.class);
+    SessionMaterial material = JSON_CODEC.decode(sessionString);
+    if (material.key != null) {
+      try {
+        material.key.initFromJson();
+      } catch (KeyczarException e) {
+        throw new JsonParseException(e);
+      }
+    }
+    return material;
   }
 }
\ No newline at end of file
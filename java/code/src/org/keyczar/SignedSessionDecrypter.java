@@ -39,6 +39,9 @@ import org.keyczar.util.Base64Coder;
 public class SignedSessionDecrypter {
   private final SessionMaterial session;
   private final Verifier verifier;
+  // Built once from the session material and used for every message
+  private final Crypter symmetricCrypter;
+  private final byte[] nonce;
   
   public SignedSessionDecrypter(Crypter crypter, Verifier verifier,
       String session) throws Base64DecodingException, KeyczarException {
@@ -48,6 +51,9 @@ public class SignedSessionDecrypter {
     byte[] decoded = Base64Coder.decodeWebSafe(session);
     String sessionString = new String(crypter.decrypt(decoded));
     this.session = SessionMaterial.read(sessionString);
+    this.symmetricCrypter =
+        new Crypter(new ImportedKeyReader(this.session.getKey()));
+    this.nonce = Base64Coder.decodeWebSafe(this.session.getNonce());
   }
   
   /**
@@ -58,17 +64,8 @@ public class SignedSessionDecrypter {
    * @throws KeyczarException
    */
   public byte[] decrypt(final byte[] signedBlob) throws KeyczarException {
-    if (null == session) {
-      throw new KeyczarException("Session has not been initialized");
-    }
-    
-    AesKey aesKey = session.getKey();
-    ImportedKeyReader importedKeyReader = new ImportedKeyReader(aesKey);
-    Crypter symmetricCrypter = new Crypter(importedKeyReader);
+    byte[] ciphertext = verifier.getAttachedData(signedBlob, nonce);
 
-    byte[] ciphertext =
-      verifier.getAttachedData(signedBlob, Base64Coder.decodeWebSafe(session.getNonce()));
-        
     return symmetricCrypter.decrypt(ciphertext);
   }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import org.keyczar.annotations.Experimental;
+import org.keyczar.exceptions.KeyczarException;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of {@link SignedSessionDecrypter}s for receivers of signed session
+ * encrypted data. Use {@link #get(String)} in place of
+ * {@code new SignedSessionDecrypter(crypter, verifier, sessionMaterial)} so
+ * that the session material is decrypted once per session rather than once
+ * per message.
+ */
+@Experimental
+public class SignedSessionDecrypterCache
+    extends SessionCache<SignedSessionDecrypter> {
+  private static final String ENCODING = "UTF-8";
+  private final Crypter crypter;
+  private final Verifier verifier;
+
+  /**
+   * @param crypter The crypter to decrypt session material with
+   * @param verifier The verifier to check signatures with
+   * @param maxSize The maximum number of sessions to cache
+   * @param ttl How long a session stays cached after it is first seen
+   * @param unit The unit of ttl
+   */
+  public SignedSessionDecrypterCache(Crypter crypter, Verifier verifier,
+      int maxSize, long ttl, TimeUnit unit) {
+    super(maxSize, ttl, unit);
+    this.crypter = crypter;
+    this.verifier = verifier;
+  }
+
+  /**
+   * Returns a signed session decrypter for the given session material,
+   * decrypting it only if it isn't cached.
+   *
+   * @param sessionMaterial Base64 encoded session material
+   * @return A signed session decrypter for that session
+   * @throws KeyczarException If there is an error during decryption
+   */
+  public SignedSessionDecrypter get(String sessionMaterial)
+      throws KeyczarException {
+    try {
+      return super.get(sessionMaterial.getBytes(ENCODING));
+    } catch (UnsupportedEncodingException e) {
+      throw new KeyczarException(e);
+    }
+  }
+
+  @Override
+  SignedSessionDecrypter create(byte[] sessionMaterial)
+      throws KeyczarException {
+    try {
+      return new SignedSessionDecrypter(
+          crypter, verifier, new String(sessionMaterial, ENCODING));
+    } catch (UnsupportedEncodingException e) {
+      throw new KeyczarException(e);
+    }
+  }
+}
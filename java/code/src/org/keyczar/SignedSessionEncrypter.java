@@ -23,6 +23,7 @@ import org.keyczar.exceptions.KeyczarException;
 import org.keyczar.keyparams.AesKeyParameters;
 import org.keyczar.util.Base64Coder;
 
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -48,13 +49,59 @@ public class SignedSessionEncrypter {
   private static final int NONCE_SIZE = 16;
   private final Encrypter encrypter;
   private final Signer signer;
+  private final PregenerationPool<Session> pool;
 
-  private final AtomicReference<SessionMaterial> session =
-      new AtomicReference<SessionMaterial>();
+  private final AtomicReference<Session> session =
+      new AtomicReference<Session>();
+
+  /**
+   * The current session material along with the symmetric Crypter and raw
+   * nonce built from it, so that encrypting a message doesn't set them up
+   * again, and the material encrypted for the recipient.
+   */
+  private static final class Session {
+    final SessionMaterial material;
+    final Crypter crypter;
+    final byte[] nonce;
+    final String encryptedMaterial;
+
+    Session(SessionMaterial material, byte[] nonce, String encryptedMaterial)
+        throws KeyczarException {
+      this.material = material;
+      this.crypter = new Crypter(new ImportedKeyReader(material.getKey()));
+      this.nonce = nonce;
+      this.encryptedMaterial = encryptedMaterial;
+    }
+  }
 
   public SignedSessionEncrypter(Encrypter encrypter, Signer signer) {
     this.encrypter = encrypter;
     this.signer = signer;
+    this.pool = null;
+  }
+
+  /**
+   * Creates a SignedSessionEncrypter that pre-generates sessions with the
+   * default AES parameters on a background executor, so that
+   * {@link #newSession()} usually doesn't generate keys or perform a public
+   * key encryption on the caller's thread.
+   *
+   * @param encrypter The encrypter used to encrypt session material
+   * @param signer The signer used to sign ciphertexts
+   * @param poolSize The number of sessions to keep ready
+   * @param executor The executor to generate sessions on
+   */
+  public SignedSessionEncrypter(Encrypter encrypter, Signer signer,
+      int poolSize, ExecutorService executor) {
+    this.encrypter = encrypter;
+    this.signer = signer;
+    this.pool = new PregenerationPool<Session>(
+        new PregenerationPool.Generator<Session>() {
+          @Override
+          public Session generate() throws KeyczarException {
+            return buildSession(defaultParameters());
+          }
+        }, poolSize, executor);
   }
 
   /**
@@ -64,7 +111,16 @@ public class SignedSessionEncrypter {
    * @throws KeyczarException
    */
   public String newSession() throws KeyczarException {
-    return this.newSession((AesKeyParameters) DefaultKeyType.AES.applyDefaultParameters(null));
+    if (pool == null) {
+      return newSession(defaultParameters());
+    }
+    Session next = pool.take();
+    session.set(next);
+    return next.encryptedMaterial;
+  }
+
+  private static AesKeyParameters defaultParameters() {
+    return (AesKeyParameters) DefaultKeyType.AES.applyDefaultParameters(null);
   }
 
   /**
@@ -90,16 +146,22 @@ public class SignedSessionEncrypter {
         return HmacKey.generate(DefaultKeyType.HMAC_SHA1.applyDefaultParameters(null));
       }
     };
-    SessionMaterial sessionMaterial = new SessionMaterial(buildSessionKey(params), buildNonce());
-    session.set(sessionMaterial);
-    return encrypter.encrypt(sessionMaterial.toString());
+    return newSession(params);
   }
 
   public String newSession(AesKeyParameters params) throws KeyczarException {
-    SessionMaterial sessionMaterial =
-        new SessionMaterial(buildSessionKey(params), buildNonce());
-    session.set(sessionMaterial);
-    return encrypter.encrypt(sessionMaterial.toString());
+    Session next = buildSession(params);
+    session.set(next);
+    return next.encryptedMaterial;
+  }
+
+  private Session buildSession(AesKeyParameters params)
+      throws KeyczarException {
+    byte[] nonce = buildNonce();
+    SessionMaterial sessionMaterial = new SessionMaterial(
+        buildSessionKey(params), Base64Coder.encodeWebSafe(nonce));
+    return new Session(sessionMaterial, nonce,
+        encrypter.encrypt(sessionMaterial.toString()));
   }
 
   private AesKey buildSessionKey(AesKeyParameters params) throws KeyczarException {
@@ -109,10 +171,10 @@ public class SignedSessionEncrypter {
     return AesKey.generate(params);
   }
 
-  private String buildNonce() {
+  private byte[] buildNonce() {
     byte[] nonce = new byte[NONCE_SIZE];
     rand(nonce);
-    return Base64Coder.encodeWebSafe(nonce);
+    return nonce;
   }
 
   /**
@@ -123,17 +185,15 @@ public class SignedSessionEncrypter {
    * @throws KeyczarException
    */
   public byte[] encrypt(byte[] plainText) throws KeyczarException {
-    if (null == session.get()) {
+    Session current = session.get();
+    if (null == current) {
       throw new KeyczarException("Session not initialized.");
     }
 
-    SessionMaterial material = session.get();
-    ImportedKeyReader importedKeyReader = new ImportedKeyReader(material.getKey());
-    Crypter symmetricCrypter = new Crypter(importedKeyReader);
-    byte[] ciphertext = symmetricCrypter.encrypt(plainText);
+    byte[] ciphertext = current.crypter.encrypt(plainText);
 
-    // encrypted nonce is not base 64 encoded for the signature, so decode before
-    // using for hidden.
-    return signer.attachedSign(ciphertext, Base64Coder.decodeWebSafe(material.getNonce()));
+    // encrypted nonce is not base 64 encoded for the signature, so the raw
+    // nonce is used for hidden.
+    return signer.attachedSign(ciphertext, current.nonce);
   }
 }
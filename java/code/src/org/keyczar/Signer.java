@@ -29,6 +29,7 @@ import org.keyczar.util.Util;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Signers may both sign and verify data using sets of symmetric or private
@@ -56,6 +57,42 @@ public class Signer extends Verifier {
     super(reader);
   }
 
+  /**
+   * Initialize a new Signer with a KeyczarReader. The corresponding key set
+   * must have a purpose {@link org.keyczar.enums.KeyPurpose#SIGN_AND_VERIFY}.
+   *
+   * If lazyKeys is set, only the primary key and versions without key hashes
+   * in the metadata are read up front; each other version is read the first
+   * time one of its hashes is used, so the reader must stay usable.
+   *
+   * @param reader A reader to read keys from
+   * @param lazyKeys Whether to defer reading non-primary keys
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   */
+  public Signer(KeyczarReader reader, boolean lazyKeys)
+      throws KeyczarException {
+    super(reader, lazyKeys);
+  }
+
+  /**
+   * Initialize a new Signer with a KeyczarReader. The corresponding key set
+   * must have a purpose {@link org.keyczar.enums.KeyPurpose#SIGN_AND_VERIFY}.
+   *
+   * Keys are parsed concurrently on the given executor, which shortens
+   * loading key sets with many large keys. The result is the same as
+   * loading them one by one.
+   *
+   * @param reader A reader to read keys from
+   * @param executor The executor to parse keys on
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   */
+  public Signer(KeyczarReader reader, ExecutorService executor)
+      throws KeyczarException {
+    super(reader, executor);
+  }
+
   /**
    * Initialize a new Signer with a key set location. This will attempt to
    * read the keys using a KeyczarFileReader. The corresponding key set
@@ -81,7 +118,12 @@ public class Signer extends Verifier {
     if (signingKey == null) {
       throw new NoPrimaryKeyException();
     }
-    return HEADER_SIZE + ((SigningStream) signingKey.getStream()).digestSize();
+    SigningStream stream = (SigningStream) signingKey.getStream();
+    try {
+      return HEADER_SIZE + stream.digestSize();
+    } finally {
+      signingKey.releaseStream(stream);
+    }
   }
 
   /**
@@ -136,8 +178,17 @@ public class Signer extends Verifier {
     }
     
     SigningStream stream = (SigningStream) signingKey.getStream();
+    try {
+      sign(signingKey, stream, input, hidden, expirationTime, output);
+    } finally {
+      signingKey.releaseStream(stream);
+    }
+  }
 
-    int spaceNeeded = digestSize();
+  private void sign(KeyczarKey signingKey, SigningStream stream,
+      ByteBuffer input, ByteBuffer hidden, long expirationTime,
+      ByteBuffer output) throws KeyczarException {
+    int spaceNeeded = HEADER_SIZE + stream.digestSize();
     if (expirationTime > 0) {
       spaceNeeded += TIMESTAMP_SIZE;
     }
@@ -209,7 +260,15 @@ public class Signer extends Verifier {
     }    
 
     SigningStream stream = (SigningStream) signingKey.getStream();
-    
+    try {
+      return attachedSign(signingKey, stream, blob, hidden);
+    } finally {
+      signingKey.releaseStream(stream);
+    }
+  }
+
+  private byte[] attachedSign(KeyczarKey signingKey, SigningStream stream,
+      byte[] blob, byte[] hidden) throws KeyczarException {
     stream.initSign();
     // Attached signature signs:
     // [blob | hidden.length | hidden | format] or [blob | 0 | format]
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.interfaces.Stream;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Hands out the Streams used to operate on a single {@link KeyczarKey}.
+ * Streams wrap stateful JCE objects, so a Stream that has been checked out
+ * must not be used by another thread until it has been released.
+ *
+ * The default cache keeps one Stream per thread. A {@link StreamPool} can be
+ * used instead to bound the number of Streams created for a key.
+ */
+abstract class StreamCache {
+  protected final KeyczarKey key;
+
+  StreamCache(KeyczarKey key) {
+    this.key = key;
+  }
+
+  /**
+   * Checks out a Stream for exclusive use by the caller.
+   *
+   * @return An initialized Stream for the key
+   * @throws KeyczarException If a new Stream can't be created
+   */
+  abstract Stream checkout() throws KeyczarException;
+
+  /**
+   * Returns a Stream obtained from {@link #checkout()} to the cache.
+   *
+   * @param stream The Stream to return
+   */
+  abstract void release(Stream stream);
+
+  /**
+   * Caches a single Stream per thread. Checking out a Stream on a thread that
+   * already holds one returns the same Stream, and releasing is a no-op.
+   */
+  static class PerThread extends StreamCache {
+    // Each thread's Streams, by the cache they belong to. A Stream refers to
+    // its key and so to its cache, so the Streams are only weakly referenced
+    // here: otherwise every key ever used on a thread would stay reachable
+    // for as long as the thread lives.
+    private static final ThreadLocal<Map<PerThread, WeakReference<Stream>>>
+        STREAMS = new ThreadLocal<Map<PerThread, WeakReference<Stream>>>() {
+          @Override
+          protected Map<PerThread, WeakReference<Stream>> initialValue() {
+            return new WeakHashMap<PerThread, WeakReference<Stream>>();
+          }
+        };
+
+    // Keeps this key's Streams alive for as long as both the key and the
+    // thread that uses each one are. Only touched when a Stream is created.
+    private final Map<Thread, Stream> owners = new WeakHashMap<Thread, Stream>();
+
+    PerThread(KeyczarKey key) {
+      super(key);
+    }
+
+    @Override
+    Stream checkout() throws KeyczarException {
+      Map<PerThread, WeakReference<Stream>> streams = STREAMS.get();
+      WeakReference<Stream> cached = streams.get(this);
+      Stream stream = (cached == null) ? null : cached.get();
+      if (stream == null) {
+        stream = key.createStream();
+        synchronized (owners) {
+          owners.put(Thread.currentThread(), stream);
+        }
+        streams.put(this, new WeakReference<Stream>(stream));
+      }
+      return stream;
+    }
+
+    @Override
+    void release(Stream stream) {
+      // The stream stays bound to its thread
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keyczar;
+
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.i18n.Messages;
+import org.keyczar.interfaces.Stream;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of Streams for a single key version. At most
+ * {@link #getMaxSize()} Streams are ever created for the key; once they are
+ * all checked out, further checkouts wait until one is released.
+ *
+ * Idle Streams are kept in a lock-free queue. The pool also keeps counters
+ * that can be exported to monitor contention on a key.
+ *
+ * @see Keyczar#useStreamPools(int)
+ */
+public class StreamPool extends StreamCache {
+  private final int maxSize;
+  private final Semaphore permits;
+  private final ConcurrentLinkedQueue<Stream> idleStreams =
+    new ConcurrentLinkedQueue<Stream>();
+
+  private final AtomicInteger created = new AtomicInteger();
+  private final AtomicLong checkouts = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong waits = new AtomicLong();
+  private final AtomicLong waitNanos = new AtomicLong();
+
+  StreamPool(KeyczarKey key, int maxSize) {
+    super(key);
+    if (maxSize < 1) {
+      throw new IllegalArgumentException(
+          Messages.getString("StreamPool.InvalidSize", maxSize));
+    }
+    this.maxSize = maxSize;
+    this.permits = new Semaphore(maxSize);
+  }
+
+  @Override
+  Stream checkout() throws KeyczarException {
+    checkouts.incrementAndGet();
+    if (!permits.tryAcquire()) {
+      long start = System.nanoTime();
+      permits.acquireUninterruptibly();
+      waits.incrementAndGet();
+      waitNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    Stream stream = idleStreams.poll();
+    if (stream != null) {
+      return stream;
+    }
+    misses.incrementAndGet();
+    boolean success = false;
+    try {
+      stream = key.createStream();
+      created.incrementAndGet();
+      success = true;
+      return stream;
+    } finally {
+      if (!success) {
+        permits.release();
+      }
+    }
+  }
+
+  @Override
+  void release(Stream stream) {
+    idleStreams.offer(stream);
+    permits.release();
+  }
+
+  /**
+   * @return The maximum number of Streams this pool will create
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return The number of Streams created so far
+   */
+  public int getSize() {
+    return created.get();
+  }
+
+  /**
+   * @return The number of Streams currently waiting in the pool
+   */
+  public int getIdleCount() {
+    return idleStreams.size();
+  }
+
+  /**
+   * @return The total number of checkouts from this pool
+   */
+  public long getCheckoutCount() {
+    return checkouts.get();
+  }
+
+  /**
+   * @return The number of checkouts that found no idle Stream and had to
+   *         create one
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return The number of checkouts that had to wait for a Stream to be
+   *         released because the pool was exhausted
+   */
+  public long getWaitCount() {
+    return waits.get();
+  }
+
+  /**
+   * @return The total time in nanoseconds that checkouts spent waiting
+   */
+  public long getTotalWaitNanos() {
+    return waitNanos.get();
+  }
+}
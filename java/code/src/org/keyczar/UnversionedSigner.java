@@ -86,7 +86,12 @@ public class UnversionedSigner extends UnversionedVerifier {
     if (signingKey == null) {
       throw new NoPrimaryKeyException();
     }
-    return ((SigningStream) signingKey.getStream()).digestSize();
+    SigningStream stream = (SigningStream) signingKey.getStream();
+    try {
+      return stream.digestSize();
+    } finally {
+      signingKey.releaseStream(stream);
+    }
   }
 
   /**
@@ -121,23 +126,25 @@ public class UnversionedSigner extends UnversionedVerifier {
       throw new NoPrimaryKeyException();
     }
 
-    SigningStream stream  = (SigningStream) signingKey.getStream();
-    
+    SigningStream stream = (SigningStream) signingKey.getStream();
+    try {
+      int spaceNeeded = stream.digestSize();
+      if (output.capacity() < spaceNeeded) {
+        throw new ShortBufferException(output.capacity(), spaceNeeded);
+      }
 
-    int spaceNeeded = digestSize();
-    if (output.capacity() < spaceNeeded) {
-      throw new ShortBufferException(output.capacity(), spaceNeeded);
+      stream.initSign();
+      // Sign the header and write it to the output buffer
+      output.mark();
+      // Sign the input data
+      stream.updateSign(input);
+      // Write the signature to the output
+      stream.sign(output);
+      output.limit(output.position());
+    } finally {
+      signingKey.releaseStream(stream);
     }
 
-    stream.initSign();
-    // Sign the header and write it to the output buffer
-    output.mark();
-    // Sign the input data
-    stream.updateSign(input);
-    // Write the signature to the output
-    stream.sign(output);
-    output.limit(output.position());
-
   }
 
   /**
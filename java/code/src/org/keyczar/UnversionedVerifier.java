@@ -117,10 +117,13 @@ public class UnversionedVerifier extends Keyczar {
   private boolean verify(ByteBuffer data, ByteBuffer signature, KeyczarKey key)
       throws KeyczarException {
     VerifyingStream stream = (VerifyingStream) key.getStream();
-    stream.initVerify();
-    stream.updateVerify(data.duplicate());
-    boolean foundValidSignature = stream.verify(signature.duplicate());
-    return foundValidSignature;
+    try {
+      stream.initVerify();
+      stream.updateVerify(data.duplicate());
+      return stream.verify(signature.duplicate());
+    } finally {
+      key.releaseStream(stream);
+    }
   }
 
   /**
@@ -31,6 +31,7 @@ import org.keyczar.util.Util;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
 
 
 /**
@@ -60,6 +61,44 @@ public class Verifier extends Keyczar {
     super(reader);
   }
 
+  /**
+   * Initialize a new Verifier with a KeyczarReader. The corresponding key set
+   * must have a purpose of either {@link org.keyczar.enums.KeyPurpose#VERIFY} or
+   * {@link org.keyczar.enums.KeyPurpose#SIGN_AND_VERIFY}.
+   *
+   * If lazyKeys is set, only the primary key and versions without key hashes
+   * in the metadata are read up front; each other version is read the first
+   * time one of its hashes is used, so the reader must stay usable.
+   *
+   * @param reader A reader to read keys from
+   * @param lazyKeys Whether to defer reading non-primary keys
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   */
+  public Verifier(KeyczarReader reader, boolean lazyKeys)
+      throws KeyczarException {
+    super(reader, lazyKeys);
+  }
+
+  /**
+   * Initialize a new Verifier with a KeyczarReader. The corresponding key set
+   * must have a purpose of either {@link org.keyczar.enums.KeyPurpose#VERIFY} or
+   * {@link org.keyczar.enums.KeyPurpose#SIGN_AND_VERIFY}.
+   *
+   * Keys are parsed concurrently on the given executor, which shortens
+   * loading key sets with many large keys. The result is the same as
+   * loading them one by one.
+   *
+   * @param reader A reader to read keys from
+   * @param executor The executor to parse keys on
+   * @throws KeyczarException In the event of an IO error reading keys or if the
+   * key set does not have the appropriate purpose.
+   */
+  public Verifier(KeyczarReader reader, ExecutorService executor)
+      throws KeyczarException {
+    super(reader, executor);
+  }
+
   /**
    * Initialize a new Verifier with a key set location. This will attempt to
    * read the keys using a KeyczarFileReader. The corresponding key set
@@ -119,13 +158,8 @@ public class Verifier extends Keyczar {
       throw new ShortSignatureException(signature.remaining());
     }
     
-    byte[] hash = checkFormatAndGetHash(signature);
-    Iterable<KeyczarKey> keys = getVerifyingKey(hash);
+    KeyczarKey[] keys = getVerifyingKeys(signature);
 
-    if (keys == null) {
-      throw new KeyNotFoundException(hash);
-    }
-    
     data.mark();
     if (hidden != null) {
       hidden.mark();
@@ -173,18 +207,20 @@ public class Verifier extends Keyczar {
   boolean rawVerify(KeyczarKey key, final ByteBuffer data, final ByteBuffer hidden,
       final ByteBuffer signature) throws KeyczarException{
     VerifyingStream stream = (VerifyingStream) key.getStream();
-    stream.initVerify();
-    stream.updateVerify(data);
-    if (hidden != null) {
-    stream.updateVerify(hidden);
-    }
-
-    // The signed data is terminated with the current Keyczar format 
-    stream.updateVerify(ByteBuffer.wrap(FORMAT_BYTES));
+    try {
+      stream.initVerify();
+      stream.updateVerify(data);
+      if (hidden != null) {
+        stream.updateVerify(hidden);
+      }
 
-    boolean result = stream.verify(signature);
+      // The signed data is terminated with the current Keyczar format
+      stream.updateVerify(ByteBuffer.wrap(FORMAT_BYTES));
 
-    return result;
+      return stream.verify(signature);
+    } finally {
+      key.releaseStream(stream);
+    }
   }
   
   /**
@@ -203,7 +239,7 @@ public class Verifier extends Keyczar {
       final byte[] hidden) throws KeyczarException {
     ByteBuffer sigBuffer = ByteBuffer.wrap(signedBlob);
     // assume I need to decode here as well.
-    byte[] hash = checkFormatAndGetHash(sigBuffer);
+    KeyczarKey[] keys = getVerifyingKeys(sigBuffer);
 
     // we have stripped the format and hash, now just get the blob and
     // raw signature
@@ -221,7 +257,6 @@ public class Verifier extends Keyczar {
       hiddenPlusLength = Util.lenPrefix(hidden);
     }    
     
-    Iterable<KeyczarKey> keys = getVerifyingKey(hash);
     for (KeyczarKey key : keys) {
       try {
         if (rawVerify(key,
@@ -272,9 +307,8 @@ public class Verifier extends Keyczar {
   public byte[] getAttachedDataWithoutVerifying(final byte[] signedBlob)
       throws KeyczarException {
     ByteBuffer sigBuffer = ByteBuffer.wrap(signedBlob);
-    byte[] hash = checkFormatAndGetHash(sigBuffer);
     // just get the bits even though we won't use it.
-    getVerifyingKey(hash);
+    getVerifyingKeys(sigBuffer);
 
     // we have stripped the format and hash, now just get the blob and
     // raw signature
@@ -285,27 +319,24 @@ public class Verifier extends Keyczar {
     return blob;
   }
   
-  private byte[] checkFormatAndGetHash(ByteBuffer signature)
-      throws BadVersionException {
+  /**
+   * Checks the format of a signature header and consumes it, looking up the
+   * keys named by its hash identifier straight from the buffer.
+   */
+  private KeyczarKey[] getVerifyingKeys(ByteBuffer signature)
+      throws KeyczarException {
     byte version = signature.get();
     if (version != FORMAT_VERSION) {
       throw new BadVersionException(version);
     }
 
-    byte[] hash = new byte[KEY_HASH_SIZE];
-    signature.get(hash);
-    
-    return hash;
-  }
-  
-  private Iterable<KeyczarKey> getVerifyingKey(byte[] hash) throws KeyNotFoundException {
-    Iterable<KeyczarKey>  key = getKey(hash);
-
-    if (key == null) {
-      throw new KeyNotFoundException(hash);
+    KeyczarKey[] keys = getKey(signature, signature.position());
+    if (keys == null) {
+      throw new KeyNotFoundException(
+          Util.readInt(signature, signature.position()));
     }
-    
-    return key;
+    signature.position(signature.position() + KEY_HASH_SIZE);
+    return keys;
   }
 
   @Override
@@ -23,6 +23,7 @@ import com.google.gson.annotations.Expose;
  *   Counter (CTR) with IV
  *   Electronic Code Book (ECB), no IV
  *   DET-CBC, CBC without IV
+ *   Galois/Counter Mode (GCM) with nonce, authenticated without an HMAC
  *
  * @author steveweis@gmail.com (Steve Weis)
  *
@@ -31,7 +32,13 @@ public enum CipherMode {
   CBC(0, "AES/CBC/PKCS5Padding", true),
   CTR(1, "AES/CTR/NoPadding", true),
   ECB(2, "AES/ECB/NoPadding", false),
-  DET_CBC(3, "AES/CBC/PKCS5Padding", false);
+  DET_CBC(3, "AES/CBC/PKCS5Padding", false),
+  GCM(4, "AES/GCM/NoPadding", true);
+
+  /** Size in bytes of the nonce written before GCM ciphertexts. */
+  public static final int GCM_NONCE_SIZE = 12;
+  /** Size in bytes of the authentication tag appended to GCM ciphertexts. */
+  public static final int GCM_TAG_SIZE = 16;
 
   private String jceMode;
   @Expose
@@ -60,6 +67,8 @@ public enum CipherMode {
         return ECB;
       case 3:
         return DET_CBC;
+      case 4:
+        return GCM;
     }
     return null;
   }
@@ -73,6 +82,8 @@ public enum CipherMode {
       return inputLength + blockSize / 2;
     } else if (this == DET_CBC) {
       return (inputLength / blockSize + 1) * blockSize;
+    } else if (this == GCM) {
+      return GCM_NONCE_SIZE + inputLength + GCM_TAG_SIZE;
     } else {
       return 0;
     }
@@ -33,7 +33,10 @@ public enum Command {
   REVOKE("revoke"),
   USEKEY("usekey"),
   IMPORT_KEY("importkey"),
-  EXPORT_KEY("exportkey");
+  EXPORT_KEY("exportkey"),
+  PACK("pack"),
+  UNPACK("unpack"),
+  HASHKEYS("hashkeys");
 
   private final String name;
 
@@ -68,6 +71,12 @@ public enum Command {
       return IMPORT_KEY;
     } else if (command.equalsIgnoreCase(EXPORT_KEY.toString())) {
       return EXPORT_KEY;
+    } else if (command.equalsIgnoreCase(PACK.toString())) {
+      return PACK;
+    } else if (command.equalsIgnoreCase(UNPACK.toString())) {
+      return UNPACK;
+    } else if (command.equalsIgnoreCase(HASHKEYS.toString())) {
+      return HASHKEYS;
     }
     throw new IllegalArgumentException(
         Messages.getString("Command.UnknownCommand", command));
@@ -39,7 +39,10 @@ public enum Flag {
   FORMAT("format"),
   LOCATION2("location2"),
   DESTINATION2("destination2"),
-  CRYPTER2("crypter2");
+  CRYPTER2("crypter2"),
+  MODE("mode"),
+  DIGEST("digest"),
+  TAGSIZE("tagsize");
   
   private final String name;
 
@@ -88,6 +91,12 @@ public enum Flag {
         return DESTINATION2;
     } else if (name.equalsIgnoreCase(CRYPTER2.toString())) {
         return CRYPTER2;
+    } else if (name.equalsIgnoreCase(MODE.toString())) {
+        return MODE;
+    } else if (name.equalsIgnoreCase(DIGEST.toString())) {
+        return DIGEST;
+    } else if (name.equalsIgnoreCase(TAGSIZE.toString())) {
+        return TAGSIZE;
     }
     throw new IllegalArgumentException(
         Messages.getString("Flag.UnknownFlag", name));
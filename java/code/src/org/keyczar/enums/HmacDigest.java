@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar.enums;
+
+import org.keyczar.DefaultKeyType;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.i18n.Messages;
+import org.keyczar.interfaces.KeyType;
+
+/**
+ * Enumeration of the digests HMAC keys can be built on.
+ *
+ * SHA1 is the original Keyczar HMAC and remains the default.  For maximum
+ * compatibility with other Keyczar implementations, the digest field is
+ * omitted when writing HMAC-SHA1 keys; it is only present for the SHA-2
+ * digests.
+ */
+public enum HmacDigest {
+  SHA1("HMACSHA1", 20),
+  SHA256("HmacSHA256", 32),
+  SHA384("HmacSHA384", 48),
+  SHA512("HmacSHA512", 64);
+
+  private final String macAlgorithm;
+  private final int size;
+
+  private HmacDigest(String macAlgorithm, int size) {
+    this.macAlgorithm = macAlgorithm;
+    this.size = size;
+  }
+
+  /**
+   * Returns the JCE name of the Mac algorithm using this digest.
+   */
+  public String getMacAlgorithm() {
+    return macAlgorithm;
+  }
+
+  /**
+   * Returns the size in bytes of a full, untruncated MAC.
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Returns the smallest tag size in bytes that keys using this digest may
+   * truncate their MACs to, which is half of the full MAC.
+   */
+  public int getMinTagSize() {
+    return size / 2;
+  }
+
+  /**
+   * Returns the key type of HMAC keys using this digest.
+   */
+  public KeyType getKeyType() {
+    switch (this) {
+      case SHA256:
+        return DefaultKeyType.HMAC_SHA256;
+      case SHA384:
+        return DefaultKeyType.HMAC_SHA384;
+      case SHA512:
+        return DefaultKeyType.HMAC_SHA512;
+      default:
+        return DefaultKeyType.HMAC_SHA1;
+    }
+  }
+
+  /**
+   * Returns the digest with the given case-insensitive name, such as
+   * "sha256".
+   *
+   * @throws KeyczarException if no digest has that name
+   */
+  public static HmacDigest getDigest(String name) throws KeyczarException {
+    if (name != null) {
+      for (HmacDigest digest : values()) {
+        if (digest.name().equalsIgnoreCase(name)) {
+          return digest;
+        }
+      }
+    }
+    throw new KeyczarException(Messages.getString("InvalidHmacDigest", name));
+  }
+}
@@ -138,15 +138,24 @@ public interface KeyType {
       typeMap.put(name, keyType);
     }
 
-    @Override
-    public KeyType deserialize(JsonElement json, Type type,
-        JsonDeserializationContext context) throws JsonParseException {
-      String keyName = json.getAsJsonPrimitive().getAsString();
-      if (!typeMap.containsKey(keyName)) {
+    /**
+     * Returns the key type registered for the given name.
+     *
+     * @throws IllegalArgumentException if no such key type is registered
+     */
+    public static KeyType getType(String keyName) {
+      KeyType keyType = typeMap.get(keyName);
+      if (keyType == null) {
         throw new IllegalArgumentException("Cannot deserialize "
             + keyName + " no such key has been registered.");
       }
-      return typeMap.get(keyName);
+      return keyType;
+    }
+
+    @Override
+    public KeyType deserialize(JsonElement json, Type type,
+        JsonDeserializationContext context) throws JsonParseException {
+      return getType(json.getAsJsonPrimitive().getAsString());
     }
   }
 }
@@ -0,0 +1,18 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+package org.keyczar.keyparams;
+
+import org.keyczar.enums.CipherMode;
+import org.keyczar.exceptions.KeyczarException;
+
+/**
+ * AES key generation parameters that also pick the cipher mode. Parameters
+ * that only implement {@link AesKeyParameters} generate CBC mode keys.
+ */
+public interface AesModeKeyParameters extends AesKeyParameters {
+
+  /**
+   * Returns the cipher mode the generated key should use, or null to use the
+   * default mode.
+   */
+  CipherMode getCipherMode() throws KeyczarException;
+}
@@ -0,0 +1,17 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+package org.keyczar.keyparams;
+
+import org.keyczar.exceptions.KeyczarException;
+
+/**
+ * Interface for objects which provide configuration information for HMAC key
+ * generation.
+ */
+public interface HmacKeyParameters extends KeyParameters {
+
+  /**
+   * Returns the size in bytes the generated key should truncate its MACs to,
+   * or -1 to use the full MAC of the key's digest.
+   */
+  int getTagSize() throws KeyczarException;
+}
@@ -268,7 +268,7 @@ public class Util {
    * @param offset The offset to start reading bytes from.
    * @return The integer value represented by the source array from the offset
    */
-  static int readInt(byte[] src, int offset) {
+  public static int readInt(byte[] src, int offset) {
     int output = 0;
     output |= (src[offset++] & 0xFF) << 24;
     output |= (src[offset++] & 0xFF) << 16;
@@ -277,6 +277,26 @@ public class Util {
     return output;
   }
 
+  /**
+   * Reads 4 big-endian ordered bytes from a given absolute offset in a buffer
+   * and returns an integer representation. Unlike {@link ByteBuffer#getInt(int)}
+   * this ignores the buffer's byte order, and it doesn't change the buffer's
+   * position.
+   *
+   * @param src The source buffer to read bytes from
+   * @param offset The absolute offset to start reading bytes from.
+   * @return The integer value represented by the source buffer from the
+   *         offset
+   */
+  public static int readInt(ByteBuffer src, int offset) {
+    int output = 0;
+    output |= (src.get(offset++) & 0xFF) << 24;
+    output |= (src.get(offset++) & 0xFF) << 16;
+    output |= (src.get(offset++) & 0xFF) << 8;
+    output |= (src.get(offset++) & 0xFF);
+    return output;
+  }
+
   /**
    * Reads 8 big-endian ordered bytes from a given offset in an array and
    * returns a long representation.
@@ -387,6 +407,43 @@ public class Util {
     return (result == 0);
   }
 
+  /**
+   * Compares an array to the remaining bytes of a buffer in constant time and
+   * consumes those bytes. Works on both heap and direct buffers without
+   * copying.
+   *
+   * @param expected The expected bytes
+   * @param actual The buffer to compare
+   * @return True if the buffer has exactly the expected bytes remaining
+   */
+  public static boolean safeBufferEquals(byte[] expected, ByteBuffer actual) {
+    return safeBufferEquals(expected, expected.length, actual);
+  }
+
+  /**
+   * Compares the first expectedLength bytes of an array to the remaining
+   * bytes of a buffer in constant time and consumes those bytes.
+   *
+   * @param expected The array holding the expected bytes
+   * @param expectedLength The number of leading bytes of expected to compare
+   * @param actual The buffer to compare
+   * @return True if the buffer has exactly the expected bytes remaining
+   */
+  public static boolean safeBufferEquals(byte[] expected, int expectedLength,
+      ByteBuffer actual) {
+    int length = actual.remaining();
+    int start = actual.position();
+    actual.position(actual.limit());
+    if (expectedLength != length) {
+      return false;
+    }
+    byte result = 0;
+    for (int i = 0; i < length; i++) {
+      result |= expected[i] ^ actual.get(start + i);
+    }
+    return (result == 0);
+  }
+
   /**
    * Concatenate arrays together.
    *
@@ -35,9 +35,14 @@ public class AllTests extends TestSuite {
     suite.addTestSuite(InteropCSharpTest.class);
     suite.addTestSuite(InteropPythonTest.class);
     suite.addTestSuite(CrypterTest.class);
+    suite.addTestSuite(ChunkedCrypterTest.class);
     suite.addTestSuite(SignerTest.class);
     suite.addTestSuite(BadHashTest.class);
     suite.addTestSuite(CollisionTest.class);
+    suite.addTestSuite(KeyHashIndexTest.class);
+    suite.addTestSuite(JsonCodecTest.class);
+    suite.addTestSuite(ReloadingTest.class);
+    suite.addTestSuite(KeyczarFileReaderTest.class);
     suite.addTestSuite(TimeoutSignerTest.class);
     suite.addTestSuite(UriSignerTest.class);
     suite.addTestSuite(KeyczarToolTest.class);
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.keyczar.exceptions.BadVersionException;
+import org.keyczar.exceptions.InvalidSignatureException;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.exceptions.ShortCiphertextException;
+
+/**
+ * Tests the chunked, parallel encryption format of ChunkedCrypter.
+ */
+public class ChunkedCrypterTest extends TestCase {
+  private static final String TEST_DATA = "./testdata";
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdown();
+  }
+
+  private static byte[] bytes(int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (i * 31);
+    }
+    return data;
+  }
+
+  @Test
+  public final void testEncryptAndDecrypt() throws KeyczarException {
+    ChunkedCrypter parallel = new ChunkedCrypter(TEST_DATA + "/aes", executor);
+    ChunkedCrypter serial = new ChunkedCrypter(TEST_DATA + "/aes", null);
+    parallel.setSegmentSize(1000);
+    serial.setSegmentSize(1000);
+    for (int length : new int[] {0, 1, 999, 1000, 1001, 100000, 123457}) {
+      byte[] input = bytes(length);
+      byte[] ciphertext = parallel.encrypt(input);
+      assertTrue(Arrays.equals(input, parallel.decrypt(ciphertext)));
+      assertTrue(Arrays.equals(input, serial.decrypt(ciphertext)));
+      assertTrue(Arrays.equals(input, parallel.decrypt(serial.encrypt(input))));
+    }
+  }
+
+  @Test
+  public final void testSegmentSizeIsRecorded() throws KeyczarException {
+    ChunkedCrypter crypter = new ChunkedCrypter(TEST_DATA + "/aes", executor);
+    byte[] input = bytes(50000);
+    crypter.setSegmentSize(4096);
+    byte[] ciphertext = crypter.encrypt(input);
+    crypter.setSegmentSize(ChunkedCrypter.DEFAULT_SEGMENT_SIZE);
+    assertTrue(Arrays.equals(input, crypter.decrypt(ciphertext)));
+  }
+
+  @Test
+  public final void testTamperedSegments() throws KeyczarException {
+    ChunkedCrypter crypter = new ChunkedCrypter(TEST_DATA + "/aes", executor);
+    crypter.setSegmentSize(1024);
+    byte[] ciphertext = crypter.encrypt(bytes(10 * 1024));
+    int segmentLength = (ciphertext.length - ChunkedCrypter.CHUNKED_HEADER_SIZE) / 10;
+
+    // Flip a bit in the header nonce and in a segment
+    for (int i : new int[] {ChunkedCrypter.CHUNKED_HEADER_SIZE - 1,
+        ChunkedCrypter.CHUNKED_HEADER_SIZE + 3 * segmentLength + 20}) {
+      byte[] tampered = ciphertext.clone();
+      tampered[i] ^= 1;
+      try {
+        crypter.decrypt(tampered);
+        fail("Tampered chunked ciphertext decrypted");
+      } catch (InvalidSignatureException e) {
+        // Expected
+      }
+    }
+
+    // Swap two segments
+    byte[] swapped = ciphertext.clone();
+    System.arraycopy(ciphertext, ChunkedCrypter.CHUNKED_HEADER_SIZE, swapped,
+        ChunkedCrypter.CHUNKED_HEADER_SIZE + segmentLength, segmentLength);
+    System.arraycopy(ciphertext, ChunkedCrypter.CHUNKED_HEADER_SIZE + segmentLength,
+        swapped, ChunkedCrypter.CHUNKED_HEADER_SIZE, segmentLength);
+    try {
+      crypter.decrypt(swapped);
+      fail("Reordered chunked ciphertext decrypted");
+    } catch (InvalidSignatureException e) {
+      // Expected
+    }
+
+    // Drop the last segment
+    try {
+      crypter.decrypt(Arrays.copyOf(ciphertext, ciphertext.length - segmentLength));
+      fail("Truncated chunked ciphertext decrypted");
+    } catch (ShortCiphertextException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public final void testFormatsAreDistinct() throws KeyczarException {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    ChunkedCrypter chunkedCrypter = new ChunkedCrypter(crypter, executor);
+    try {
+      crypter.decrypt(chunkedCrypter.encrypt(bytes(100)));
+      fail("Crypter decrypted the chunked format");
+    } catch (BadVersionException e) {
+      // Expected
+    }
+    try {
+      chunkedCrypter.decrypt(crypter.encrypt(bytes(100)));
+      fail("ChunkedCrypter decrypted the regular format");
+    } catch (BadVersionException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public final void testRejectsNonAesKeys() throws KeyczarException {
+    ChunkedCrypter crypter = new ChunkedCrypter(TEST_DATA + "/rsa", executor);
+    try {
+      crypter.encrypt(bytes(100));
+      fail("Chunked encryption with an RSA key");
+    } catch (KeyczarException e) {
+      // Expected
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package org.keyczar;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 
 import org.apache.log4j.Logger;
@@ -7,6 +9,7 @@ import org.junit.Test;
 import org.keyczar.interfaces.KeyczarReader;
 import org.keyczar.util.Base64Coder;
 import org.keyczar.util.Clock;
+import org.keyczar.util.Util;
 
 import junit.framework.TestCase;
 
@@ -209,6 +212,20 @@ public class CollisionTest extends TestCase {
 	  public final void testRsaDecrypt() throws Exception {
 	    testDecrypt("/rsa");
 	  }
+
+	  @Test
+	  public final void testAesStreamingDecrypt() throws Exception {
+	    Crypter crypter = new Crypter(testData("/aes"));
+	    for (String version : new String[] {"1", "2"}) {
+	      RandomAccessFile ciphertextInput =
+	        new RandomAccessFile(testData("/aes") + "/" + version + ".out", "r");
+	      String ciphertext = ciphertextInput.readLine();
+	      ciphertextInput.close();
+	      InputStream plaintext = crypter.decryptingInputStream(
+	          new ByteArrayInputStream(Base64Coder.decodeWebSafe(ciphertext)));
+	      assertEquals(input, new String(Util.readStreamFully(plaintext)));
+	    }
+	  }
 	  
 	  
 }
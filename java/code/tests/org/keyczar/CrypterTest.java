@@ -17,17 +17,43 @@
 package org.keyczar;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import junit.framework.TestCase;
 
 import org.apache.log4j.Logger;
 import org.junit.Test;
+import org.keyczar.enums.CipherMode;
+import org.keyczar.enums.HmacDigest;
+import org.keyczar.enums.KeyPurpose;
+import org.keyczar.enums.KeyStatus;
+import org.keyczar.exceptions.InvalidSignatureException;
 import org.keyczar.exceptions.KeyNotFoundException;
 import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.exceptions.ShortBufferException;
 import org.keyczar.exceptions.ShortCiphertextException;
 import org.keyczar.interfaces.KeyczarReader;
+import org.keyczar.keyparams.AesKeyParameters;
+import org.keyczar.util.Base64Coder;
+import org.keyczar.util.Util;
 
 /**
  * Tests Crypter class for encrypting and decrypting with RSA and AES. 
@@ -141,4 +167,541 @@ public class CrypterTest extends TestCase {
       // Expected exception
     }    
   }
-}
\ No newline at end of file
+
+  @Test
+  public final void testConcurrentAesEncryptAndDecrypt() throws Exception {
+    final Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    final byte[] bigInput = new byte[10000];
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (int i = 0; i < 64; i++) {
+        results.add(executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            for (int j = 0; j < 50; j++) {
+              byte[] decrypted = crypter.decrypt(crypter.encrypt(bigInput));
+              if (!Arrays.equals(bigInput, decrypted)) {
+                return false;
+              }
+            }
+            return true;
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public final void testStreamPool() throws Exception {
+    final Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    crypter.useStreamPools(2);
+    final byte[] bigInput = new byte[10000];
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (int i = 0; i < 16; i++) {
+        results.add(executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            for (int j = 0; j < 20; j++) {
+              byte[] decrypted = crypter.decrypt(crypter.encrypt(bigInput));
+              if (!Arrays.equals(bigInput, decrypted)) {
+                return false;
+              }
+            }
+            return true;
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    StreamPool pool = crypter.getStreamPool(2);
+    assertNotNull(pool);
+    assertEquals(2, pool.getMaxSize());
+    assertTrue(pool.getSize() <= 2);
+    assertEquals(pool.getSize(), pool.getIdleCount());
+    assertEquals(pool.getSize(), pool.getMissCount());
+    assertTrue(pool.getCheckoutCount() >= 16 * 20 * 2);
+    assertNull(crypter.getStreamPool(42));
+  }
+
+  @Test
+  public final void testAesChunkSizes() throws KeyczarException {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    byte[] bigInput = new byte[100000];
+    for (int i = 0; i < bigInput.length; i++) {
+      bigInput[i] = (byte) i;
+    }
+    byte[] ciphertext = crypter.encrypt(bigInput);
+    for (int chunkSize : new int[] {1, 15, 16, 1024, 99999, 100000, 1 << 20}) {
+      crypter.setChunkSize(chunkSize);
+      assertTrue(Arrays.equals(bigInput, crypter.decrypt(ciphertext)));
+      assertTrue(Arrays.equals(bigInput, crypter.decrypt(crypter.encrypt(bigInput))));
+    }
+  }
+
+  @Test
+  public final void testAesGcm() throws KeyczarException {
+    AesKey key = new AesKey(Util.rand(16), new HmacKey(Util.rand(32)), CipherMode.GCM);
+    Crypter crypter = new Crypter(new ImportedKeyReader(key));
+    byte[] ciphertext = crypter.encrypt(input.getBytes());
+    // Header, nonce, ciphertext and tag, with no trailing HMAC
+    assertEquals(Keyczar.HEADER_SIZE + CipherMode.GCM_NONCE_SIZE + input.length()
+        + CipherMode.GCM_TAG_SIZE, ciphertext.length);
+    assertEquals(input, new String(crypter.decrypt(ciphertext)));
+
+    AesKey readKey = AesKey.read(key.toString());
+    assertEquals(CipherMode.GCM, readKey.getMode());
+    assertEquals(input,
+        new String(new Crypter(new ImportedKeyReader(readKey)).decrypt(ciphertext)));
+
+    for (int i : new int[] {Keyczar.HEADER_SIZE, ciphertext.length - 1}) {
+      byte[] tampered = ciphertext.clone();
+      tampered[i] ^= 1;
+      try {
+        crypter.decrypt(tampered);
+        fail("Tampered GCM ciphertext decrypted");
+      } catch (InvalidSignatureException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public final void testImportedKeyIsNotReparsed() throws KeyczarException {
+    AesKey key = new AesKey(Util.rand(16), new HmacKey(Util.rand(32)));
+    Crypter crypter = new Crypter(new ImportedKeyReader(key));
+    assertSame(key, crypter.getPrimaryKey());
+    assertEquals(input, new String(crypter.decrypt(crypter.encrypt(input.getBytes()))));
+
+    KeyMetadata kmd = new KeyMetadata(
+        "Mismatched", KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES);
+    kmd.addVersion(new KeyVersion(0, KeyStatus.PRIMARY, false));
+    List<KeyczarKey> keys = new ArrayList<KeyczarKey>();
+    keys.add(new HmacKey(Util.rand(32)));
+    try {
+      new Crypter(new ImportedKeyReader(kmd, keys));
+      fail("Used an HMAC key as an AES key");
+    } catch (KeyczarException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public final void testAesWithHmacSha2() throws KeyczarException {
+    HmacKey hmacKey = new HmacKey(Util.rand(64), HmacDigest.SHA512, 40);
+    AesKey key = new AesKey(Util.rand(16), hmacKey);
+    Crypter crypter = new Crypter(new ImportedKeyReader(key));
+    byte[] ciphertext = crypter.encrypt(input.getBytes());
+    // Header, IV, two padded blocks and the truncated HMAC-SHA512 tag
+    assertEquals(Keyczar.HEADER_SIZE + 16 + 32 + 40, ciphertext.length);
+    assertEquals(input, new String(crypter.decrypt(ciphertext)));
+
+    AesKey readKey = AesKey.read(key.toString());
+    assertEquals(input,
+        new String(new Crypter(new ImportedKeyReader(readKey)).decrypt(ciphertext)));
+
+    byte[] tampered = ciphertext.clone();
+    tampered[tampered.length - 1] ^= 1;
+    try {
+      crypter.decrypt(tampered);
+      fail("Tampered ciphertext decrypted");
+    } catch (InvalidSignatureException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public final void testLazyKeys() throws Exception {
+    final KeyczarFileReader fileReader =
+        new KeyczarFileReader(TEST_DATA + "/aes");
+    // Loading a key set doesn't change its metadata; the hashes have to be
+    // recorded explicitly
+    GenericKeyczar keyczar = new GenericKeyczar(fileReader);
+    assertFalse(keyczar.toString().contains("keyHashes"));
+    keyczar.recordKeyHashes();
+    final String metadata = keyczar.toString();
+    assertTrue(metadata.contains("keyHashes"));
+    final List<Integer> reads = new ArrayList<Integer>();
+    KeyczarReader countingReader = new KeyczarReader() {
+      @Override
+      public String getKey(int version) throws KeyczarException {
+        reads.add(version);
+        return fileReader.getKey(version);
+      }
+
+      @Override
+      public String getKey() throws KeyczarException {
+        return getKey(KeyMetadata.read(metadata).getPrimaryVersion()
+            .getVersionNumber());
+      }
+
+      @Override
+      public String getMetadata() {
+        return metadata;
+      }
+    };
+
+    Crypter crypter = new Crypter(countingReader, true);
+    assertEquals(Arrays.asList(2), reads);
+    RandomAccessFile activeInput =
+        new RandomAccessFile(TEST_DATA + "/aes/1.out", "r");
+    String activeCiphertext = activeInput.readLine();
+    activeInput.close();
+    byte[] ciphertext = crypter.encrypt(input.getBytes());
+    assertEquals(input, new String(crypter.decrypt(ciphertext)));
+    assertEquals(Arrays.asList(2), reads);
+    assertEquals(input, crypter.decrypt(activeCiphertext));
+    assertEquals(input, crypter.decrypt(activeCiphertext));
+    assertEquals(Arrays.asList(2, 1), reads);
+
+    // Unknown hashes still fail once every version is loaded
+    byte[] unknown = ciphertext.clone();
+    unknown[1] ^= 1;
+    try {
+      crypter.decrypt(unknown);
+      fail("Decrypted a ciphertext with an unknown key hash");
+    } catch (KeyNotFoundException e) {
+      // Expected
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[777];
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  private static void testStreaming(Crypter crypter) throws Exception {
+    byte[] bigInput = new byte[100000];
+    for (int i = 0; i < bigInput.length; i++) {
+      bigInput[i] = (byte) i;
+    }
+    for (int length : new int[] {0, 1, 16, 1000, bigInput.length}) {
+      byte[] plaintext = Arrays.copyOf(bigInput, length);
+      ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+      OutputStream out = crypter.encryptingOutputStream(ciphertext);
+      int written = 0;
+      for (int step = 1; written < length; step *= 3) {
+        int n = Math.min(step, length - written);
+        out.write(plaintext, written, n);
+        written += n;
+      }
+      out.close();
+
+      assertTrue(Arrays.equals(plaintext, crypter.decrypt(ciphertext.toByteArray())));
+      assertTrue(Arrays.equals(plaintext, readFully(crypter.decryptingInputStream(
+          new ByteArrayInputStream(crypter.encrypt(plaintext))))));
+
+      byte[] tampered = ciphertext.toByteArray();
+      tampered[tampered.length - 1] ^= 1;
+      try {
+        readFully(crypter.decryptingInputStream(new ByteArrayInputStream(tampered)));
+        fail("Tampered ciphertext was decrypted");
+      } catch (IOException e) {
+        assertTrue(e.getCause() instanceof InvalidSignatureException);
+      }
+    }
+  }
+
+  @Test
+  public final void testAesStreaming() throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    testStreaming(crypter);
+    crypter.setChunkSize(1);
+    testStreaming(crypter);
+  }
+
+  @Test
+  public final void testAesParametersWithoutMode() throws KeyczarException {
+    // Parameters that predate cipher modes still generate CBC keys
+    AesKey key = AesKey.generate(new AesKeyParameters() {
+      @Override
+      public int getKeySize() {
+        return 128;
+      }
+
+      @Override
+      public HmacKey getHmacKey() throws KeyczarException {
+        return HmacKey.generate(
+            DefaultKeyType.HMAC_SHA1.applyDefaultParameters(null));
+      }
+    });
+    assertEquals(CipherMode.CBC, key.getMode());
+  }
+
+  @Test
+  public final void testAesGcmStreaming() throws Exception {
+    AesKey key = new AesKey(Util.rand(16), new HmacKey(Util.rand(32)), CipherMode.GCM);
+    testStreaming(new Crypter(new ImportedKeyReader(key)));
+  }
+
+  @Test
+  public final void testFileChannels() throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    byte[] plaintext = new byte[100000];
+    for (int i = 0; i < plaintext.length; i++) {
+      plaintext[i] = (byte) i;
+    }
+    File plainFile = File.createTempFile("keyczar", ".plain");
+    File cipherFile = File.createTempFile("keyczar", ".cipher");
+    File decryptedFile = File.createTempFile("keyczar", ".decrypted");
+    try {
+      FileOutputStream plainOut = new FileOutputStream(plainFile);
+      plainOut.write(plaintext);
+      plainOut.close();
+
+      RandomAccessFile plain = new RandomAccessFile(plainFile, "r");
+      RandomAccessFile cipher = new RandomAccessFile(cipherFile, "rw");
+      int written = crypter.encrypt(plain.getChannel(), cipher.getChannel());
+      assertEquals(crypter.ciphertextSize(plaintext.length), written);
+      assertEquals(written, cipher.length());
+      assertEquals(written, cipher.getChannel().position());
+      plain.close();
+      cipher.close();
+
+      byte[] ciphertext = readFully(new FileInputStream(cipherFile));
+      assertTrue(Arrays.equals(plaintext, crypter.decrypt(ciphertext)));
+
+      cipher = new RandomAccessFile(cipherFile, "r");
+      RandomAccessFile decrypted = new RandomAccessFile(decryptedFile, "rw");
+      assertEquals(plaintext.length,
+          crypter.decrypt(cipher.getChannel(), decrypted.getChannel()));
+      assertEquals(plaintext.length, decrypted.length());
+      cipher.close();
+      decrypted.close();
+      assertTrue(Arrays.equals(plaintext,
+          readFully(new FileInputStream(decryptedFile))));
+    } finally {
+      plainFile.delete();
+      cipherFile.delete();
+      decryptedFile.delete();
+    }
+  }
+
+  @Test
+  public final void testFailedFileChannelDecrypt() throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    byte[] tampered = crypter.encrypt(input.getBytes());
+    tampered[tampered.length - 1] ^= 1;
+    byte[] existing = "existing".getBytes();
+    File cipherFile = File.createTempFile("keyczar", ".cipher");
+    File decryptedFile = File.createTempFile("keyczar", ".decrypted");
+    try {
+      FileOutputStream cipherOut = new FileOutputStream(cipherFile);
+      cipherOut.write(tampered);
+      cipherOut.close();
+      FileOutputStream decryptedOut = new FileOutputStream(decryptedFile);
+      decryptedOut.write(existing);
+      decryptedOut.close();
+
+      RandomAccessFile cipher = new RandomAccessFile(cipherFile, "r");
+      RandomAccessFile decrypted = new RandomAccessFile(decryptedFile, "rw");
+      decrypted.getChannel().position(existing.length);
+      try {
+        crypter.decrypt(cipher.getChannel(), decrypted.getChannel());
+        fail("Tampered ciphertext should not decrypt");
+      } catch (InvalidSignatureException e) {
+        // Expected
+      }
+      // The output is left as it was
+      assertEquals(existing.length, decrypted.length());
+      assertEquals(existing.length, decrypted.getChannel().position());
+      cipher.close();
+      decrypted.close();
+      assertTrue(Arrays.equals(existing,
+          readFully(new FileInputStream(decryptedFile))));
+    } finally {
+      cipherFile.delete();
+      decryptedFile.delete();
+    }
+  }
+
+  @Test
+  public final void testDirectBuffers() throws KeyczarException {
+    byte[] plaintext = input.getBytes();
+    for (String subDir : new String[] {"/aes", "/rsa"}) {
+      Crypter crypter = new Crypter(TEST_DATA + subDir);
+      ByteBuffer data = ByteBuffer.allocateDirect(plaintext.length);
+      data.put(plaintext);
+      data.flip();
+      ByteBuffer ciphertext =
+          ByteBuffer.allocateDirect(crypter.ciphertextSize(plaintext.length));
+      crypter.encrypt(data, ciphertext);
+      ciphertext.flip();
+
+      ByteBuffer decrypted = ByteBuffer.allocateDirect(ciphertext.remaining());
+      crypter.decrypt(ciphertext, decrypted);
+      decrypted.flip();
+      byte[] decryptedBytes = new byte[decrypted.remaining()];
+      decrypted.get(decryptedBytes);
+      assertTrue(Arrays.equals(plaintext, decryptedBytes));
+    }
+  }
+
+  @Test
+  public final void testUsedKeysAreCollectable() throws Exception {
+    // The per-thread Stream caches must not keep keys alive on this thread
+    List<WeakReference<AesKey>> used = new ArrayList<WeakReference<AesKey>>();
+    for (int i = 0; i < 20; i++) {
+      AesKey key = AesKey.generate(
+          (AesKeyParameters) DefaultKeyType.AES.applyDefaultParameters(null));
+      Crypter crypter = new Crypter(new ImportedKeyReader(key));
+      crypter.decrypt(crypter.encrypt(input.getBytes()));
+      used.add(new WeakReference<AesKey>(key));
+    }
+    for (int attempt = 0; attempt < 50 && countLive(used) > 0; attempt++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertEquals(0, countLive(used));
+  }
+
+  private static int countLive(List<? extends WeakReference<?>> refs) {
+    int live = 0;
+    for (WeakReference<?> ref : refs) {
+      if (ref.get() != null) {
+        live++;
+      }
+    }
+    return live;
+  }
+
+  @Test
+  public final void testLittleEndianBuffers() throws KeyczarException {
+    byte[] plaintext = input.getBytes();
+    for (String subDir : new String[] {"/aes", "/rsa"}) {
+      Crypter crypter = new Crypter(TEST_DATA + subDir);
+      // Key hashes are big-endian whatever order the caller's buffers use
+      ByteBuffer ciphertext = ByteBuffer.wrap(crypter.encrypt(plaintext))
+          .order(ByteOrder.LITTLE_ENDIAN);
+      ByteBuffer decrypted = ByteBuffer.allocate(ciphertext.remaining())
+          .order(ByteOrder.LITTLE_ENDIAN);
+      crypter.decrypt(ciphertext, decrypted);
+      decrypted.flip();
+      byte[] decryptedBytes = new byte[decrypted.remaining()];
+      decrypted.get(decryptedBytes);
+      assertTrue(Arrays.equals(plaintext, decryptedBytes));
+    }
+  }
+
+  @Test
+  public final void testArrayOffsets() throws KeyczarException {
+    byte[] plaintext = input.getBytes();
+    for (String subDir : new String[] {"/aes", "/rsa"}) {
+      Crypter crypter = new Crypter(TEST_DATA + subDir);
+      byte[] inputArray = new byte[plaintext.length + 10];
+      System.arraycopy(plaintext, 0, inputArray, 3, plaintext.length);
+      byte[] ciphertext = new byte[crypter.ciphertextSize(plaintext.length) + 7];
+      int ciphertextLength =
+          crypter.encrypt(inputArray, 3, plaintext.length, ciphertext, 7);
+      assertEquals(crypter.ciphertextSize(plaintext.length), ciphertextLength);
+
+      byte[] decrypted = new byte[ciphertextLength + 5];
+      int plaintextLength =
+          crypter.decrypt(ciphertext, 7, ciphertextLength, decrypted, 5);
+      assertEquals(plaintext.length, plaintextLength);
+      for (int i = 0; i < plaintextLength; i++) {
+        assertEquals(plaintext[i], decrypted[5 + i]);
+      }
+
+      try {
+        crypter.encrypt(inputArray, 3, plaintext.length, ciphertext, 8);
+        fail("Encrypted into a buffer that was too short");
+      } catch (ShortBufferException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public final void testEncryptBatch() throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    List<byte[]> inputs = new ArrayList<byte[]>();
+    for (int i = 0; i < 1000; i++) {
+      inputs.add((input + i).getBytes());
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (ExecutorService e : Arrays.asList(null, executor)) {
+        List<byte[]> ciphertexts = crypter.encryptBatch(inputs, e);
+        assertEquals(inputs.size(), ciphertexts.size());
+        for (int i = 0; i < inputs.size(); i++) {
+          assertTrue(Arrays.equals(inputs.get(i), crypter.decrypt(ciphertexts.get(i))));
+        }
+      }
+
+      ByteBuffer[] inputBuffers = new ByteBuffer[inputs.size()];
+      ByteBuffer[] outputBuffers = new ByteBuffer[inputs.size()];
+      for (int i = 0; i < inputs.size(); i++) {
+        inputBuffers[i] = ByteBuffer.wrap(inputs.get(i));
+        outputBuffers[i] =
+            ByteBuffer.allocate(crypter.ciphertextSize(inputs.get(i).length));
+      }
+      crypter.encryptBatch(inputBuffers, outputBuffers, executor);
+      for (int i = 0; i < inputs.size(); i++) {
+        assertFalse(outputBuffers[i].hasRemaining());
+        assertTrue(Arrays.equals(inputs.get(i),
+            crypter.decrypt(outputBuffers[i].array())));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public final void testDecryptBatch() throws Exception {
+    Crypter crypter = new Crypter(TEST_DATA + "/aes");
+    List<byte[]> ciphertexts = new ArrayList<byte[]>();
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 500; i++) {
+      // Interleave ciphertexts from the active and primary key versions
+      RandomAccessFile versionInput = new RandomAccessFile(
+          TEST_DATA + "/aes/" + (i % 2 + 1) + ".out", "r");
+      ciphertexts.add(Base64Coder.decodeWebSafe(versionInput.readLine()));
+      versionInput.close();
+      expected.add(input);
+      ciphertexts.add(crypter.encrypt((input + i).getBytes()));
+      expected.add(input + i);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (ExecutorService e : Arrays.asList(null, executor)) {
+        List<byte[]> plaintexts = crypter.decryptBatch(ciphertexts, e);
+        assertEquals(expected.size(), plaintexts.size());
+        for (int i = 0; i < expected.size(); i++) {
+          assertEquals(expected.get(i), new String(plaintexts.get(i)));
+        }
+      }
+
+      byte[] tampered = ciphertexts.get(7).clone();
+      tampered[tampered.length - 1] ^= 1;
+      ciphertexts.set(7, tampered);
+      try {
+        crypter.decryptBatch(ciphertexts, executor);
+        fail("Batch with a tampered ciphertext was decrypted");
+      } catch (InvalidSignatureException e) {
+        // Expected
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import com.google.gson.JsonParseException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.keyczar.enums.HmacDigest;
+import org.keyczar.util.Util;
+
+/**
+ * Tests that the hand-written JSON codecs read and write key sets exactly as
+ * the reflective Gson binding they replace.
+ */
+public class JsonCodecTest extends TestCase {
+  private static final String TEST_DATA = "./testdata";
+
+  private void checkKeySet(String subDir) throws Exception {
+    GenericKeyczar keyczar = new GenericKeyczar(TEST_DATA + subDir);
+    KeyMetadata kmd = keyczar.getMetadata();
+    assertEquals(Util.gson().toJson(kmd), kmd.toString());
+    assertEquals(kmd.toString(), KeyMetadata.read(kmd.toString()).toString());
+    for (KeyVersion version : keyczar.getVersions()) {
+      assertEquals(Util.gson().toJson(version), version.toString());
+      KeyczarKey key = keyczar.getKey(version);
+      String json = key.toString();
+      assertEquals(Util.gson().toJson(key), json);
+      KeyczarKey read = kmd.getType().getBuilder().read(json);
+      assertEquals(key, read);
+      assertEquals(json, read.toString());
+    }
+  }
+
+  @Test
+  public final void testKeySets() throws Exception {
+    checkKeySet("/aes");
+    checkKeySet("/hmac");
+    checkKeySet("/rsa");
+    checkKeySet("/rsa.public");
+    checkKeySet("/dsa");
+    checkKeySet("/dsa.public");
+  }
+
+  @Test
+  public final void testOptionalFields() throws Exception {
+    HmacKey key = new HmacKey(Util.rand(32), HmacDigest.SHA256, 20);
+    String json = key.toString();
+    assertEquals(Util.gson().toJson(key), json);
+    HmacKey read = HmacKey.read(json);
+    assertEquals(HmacDigest.SHA256, read.getDigest());
+    assertEquals(20, read.getTagSize());
+
+    // Unknown fields are skipped and missing ones keep their defaults
+    KeyMetadata kmd = KeyMetadata.read(
+        "{\"name\":\"Test\",\"extra\":{\"a\":[1,2]},\"purpose\":\"SIGN_AND_VERIFY\"}");
+    assertEquals("Test", kmd.getName());
+    assertEquals(DefaultKeyType.TEST, kmd.getType());
+    assertTrue(kmd.getVersions().isEmpty());
+    assertFalse(kmd.isEncrypted());
+  }
+
+  @Test
+  public final void testSessionMaterial() throws Exception {
+    SessionMaterial material = new SessionMaterial(
+        AesKey.read(new KeyczarFileReader(TEST_DATA + "/aes").getKey()), "bm9uY2U");
+    String json = material.toString();
+    assertEquals(Util.gson().toJson(material), json);
+    SessionMaterial read = SessionMaterial.read(json);
+    assertEquals("bm9uY2U", read.getNonce());
+    assertEquals(json, read.toString());
+  }
+
+  @Test
+  public final void testMalformedInput() {
+    try {
+      KeyMetadata.read("{\"versions\": 3}");
+      fail("Read a malformed key set");
+    } catch (JsonParseException e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.keyczar.util.Util;
+
+/**
+ * Tests the key hash index used to find keys from ciphertexts and signatures.
+ */
+public class KeyHashIndexTest extends TestCase {
+
+  @Test
+  public final void testManyKeys() throws Exception {
+    int count = 500;
+    HmacKey[] keys = new HmacKey[count];
+    KeyHashIndex.Builder builder = new KeyHashIndex.Builder();
+    for (int i = 0; i < count; i++) {
+      keys[i] = new HmacKey(Util.rand(32));
+      builder.add(keys[i].hash(), keys[i]);
+    }
+    KeyHashIndex index = builder.build();
+
+    // Look each hash up from the middle of a larger buffer and array
+    byte[] header = new byte[Keyczar.HEADER_SIZE + 3];
+    for (HmacKey key : keys) {
+      System.arraycopy(key.hash(), 0, header, 1, Keyczar.KEY_HASH_SIZE);
+      KeyczarKey[] found = index.get(header, 1);
+      assertEquals(1, found.length);
+      assertSame(key, found[0]);
+      ByteBuffer buffer = ByteBuffer.wrap(header);
+      assertSame(found, index.get(buffer, 1));
+      assertEquals(0, buffer.position());
+    }
+  }
+
+  @Test
+  public final void testSharedHashes() throws Exception {
+    HmacKey first = new HmacKey(Util.rand(32));
+    HmacKey second = new HmacKey(Util.rand(32));
+    KeyHashIndex index = new KeyHashIndex.Builder()
+        .add(7, first).add(0, second).add(7, second).build();
+    KeyczarKey[] keys = index.get(7);
+    assertEquals(2, keys.length);
+    assertSame(first, keys[0]);
+    assertSame(second, keys[1]);
+    assertSame(keys, index.get(7));
+    assertSame(second, index.get(0)[0]);
+    assertNull(index.get(8));
+    assertNull(new KeyHashIndex.Builder().build().get(7));
+
+    // Rebuilding keeps the existing keys in order
+    HmacKey third = new HmacKey(Util.rand(32));
+    KeyHashIndex grown = index.toBuilder().add(7, third).build();
+    keys = grown.get(7);
+    assertEquals(3, keys.length);
+    assertSame(first, keys[0]);
+    assertSame(third, keys[2]);
+    assertEquals(2, index.get(7).length);
+  }
+}
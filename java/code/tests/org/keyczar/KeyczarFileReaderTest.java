@@ -16,8 +16,14 @@
 
 package org.keyczar;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import junit.framework.TestCase;
 
+import org.keyczar.enums.KeyStatus;
 import org.keyczar.exceptions.NoPrimaryKeyException;
 import org.keyczar.interfaces.KeyczarReader;
 
@@ -49,4 +55,125 @@ public class KeyczarFileReaderTest extends TestCase {
     	// expected
     }
   }
+
+  public void testCachingReader() throws Exception {
+    File dir = copyKeySet("/aes");
+    CachingKeyczarFileReader reader =
+        new CachingKeyczarFileReader(dir.getPath());
+    String metadata = reader.getMetadata();
+    assertEquals(new KeyczarFileReader(TEST_DATA + "/aes").getMetadata(),
+        metadata);
+    assertSame(metadata, reader.getMetadata());
+    // Readers over the same directory share the cache
+    assertSame(metadata,
+        new CachingKeyczarFileReader(dir.getPath()).getMetadata());
+    assertEquals(reader.getKey(2), reader.getKey());
+
+    // Touching a file without changing it keeps the cached contents
+    File meta = new File(dir, KeyczarFileReader.META_FILE);
+    meta.setLastModified(meta.lastModified() - 10000);
+    assertSame(metadata, reader.getMetadata());
+
+    KeyMetadata kmd = KeyMetadata.read(metadata);
+    kmd.getVersion(2).setStatus(KeyStatus.ACTIVE);
+    kmd.getVersion(1).setStatus(KeyStatus.PRIMARY);
+    writeFile(meta, kmd.toString());
+    meta.setLastModified(meta.lastModified() - 20000);
+    assertEquals(kmd.toString(), reader.getMetadata());
+    assertEquals(reader.getKey(1), reader.getKey());
+  }
+
+  public void testChangeNotification() throws Exception {
+    File dir = copyKeySet("/aes");
+    CachingKeyczarFileReader reader =
+        new CachingKeyczarFileReader(dir.getPath());
+    final AtomicInteger changes = new AtomicInteger();
+    reader.addChangeListener(new CachingKeyczarFileReader.ChangeListener() {
+      @Override
+      public void keySetChanged(CachingKeyczarFileReader changedReader) {
+        changes.incrementAndGet();
+      }
+    });
+    ReloadingCrypter crypter = new ReloadingCrypter(reader);
+    assertFalse(reader.checkForChanges());
+
+    File meta = new File(dir, KeyczarFileReader.META_FILE);
+    meta.setLastModified(meta.lastModified() - 10000);
+    assertFalse(reader.checkForChanges());
+    assertEquals(0, changes.get());
+
+    KeyMetadata kmd = KeyMetadata.read(reader.getMetadata());
+    kmd.getVersion(2).setStatus(KeyStatus.ACTIVE);
+    kmd.getVersion(1).setStatus(KeyStatus.PRIMARY);
+    writeFile(meta, kmd.toString());
+    meta.setLastModified(meta.lastModified() - 20000);
+    assertTrue(reader.checkForChanges());
+    assertEquals(1, changes.get());
+    assertFalse(reader.checkForChanges());
+    assertTrue(crypter.reload());
+  }
+
+  public void testSameSizeChangeWithinTimestamp() throws Exception {
+    File dir = copyKeySet("/aes");
+    File meta = new File(dir, KeyczarFileReader.META_FILE);
+    KeyMetadata kmd = KeyMetadata.read(
+        new KeyczarFileReader(dir.getPath()).getMetadata());
+    writeFile(meta, kmd.toString());
+    long lastModified = meta.lastModified();
+    CachingKeyczarFileReader reader =
+        new CachingKeyczarFileReader(dir.getPath());
+    String metadata = reader.getMetadata();
+
+    // Swapping the statuses keeps the size, and the time is put back
+    kmd.getVersion(2).setStatus(KeyStatus.ACTIVE);
+    kmd.getVersion(1).setStatus(KeyStatus.PRIMARY);
+    writeFile(meta, kmd.toString());
+    assertEquals(metadata.length(), kmd.toString().length());
+    meta.setLastModified(lastModified);
+    assertTrue(reader.checkForChanges());
+    assertEquals(kmd.toString(), reader.getMetadata());
+    assertEquals(reader.getKey(1), reader.getKey());
+  }
+
+  public void testEvictCachedFiles() throws Exception {
+    File dir = copyKeySet("/aes");
+    CachingKeyczarFileReader reader =
+        new CachingKeyczarFileReader(dir.getPath());
+    String metadata = reader.getMetadata();
+    assertSame(metadata, reader.getMetadata());
+    reader.evictCachedFiles();
+    String reread = reader.getMetadata();
+    assertNotSame(metadata, reread);
+    assertEquals(metadata, reread);
+    CachingKeyczarFileReader.clearCache();
+    assertNotSame(reread, reader.getMetadata());
+    assertEquals(metadata, reader.getMetadata());
+    assertFalse(reader.checkForChanges());
+  }
+
+  private static File copyKeySet(String subDir) throws Exception {
+    File dir = File.createTempFile("keyczar", "");
+    dir.delete();
+    dir.mkdir();
+    dir.deleteOnExit();
+    KeyczarFileReader source = new KeyczarFileReader(TEST_DATA + subDir);
+    String metadata = source.getMetadata();
+    writeFile(new File(dir, KeyczarFileReader.META_FILE), metadata);
+    for (KeyVersion version : KeyMetadata.read(metadata).getVersions()) {
+      writeFile(new File(dir, String.valueOf(version.getVersionNumber())),
+          source.getKey(version.getVersionNumber()));
+    }
+    return dir;
+  }
+
+  private static void writeFile(File file, String contents)
+      throws IOException {
+    FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(contents.getBytes());
+    } finally {
+      output.close();
+    }
+    file.deleteOnExit();
+  }
 }
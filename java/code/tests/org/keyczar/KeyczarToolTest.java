@@ -16,7 +16,9 @@
 
 package org.keyczar;
 
+import java.io.File;
 import java.io.RandomAccessFile;
+import java.util.Arrays;
 
 import junit.framework.TestCase;
 
@@ -80,6 +82,15 @@ public class KeyczarToolTest extends TestCase {
     assertEquals(DefaultKeyType.TEST, mock.type());
   }
 
+  @Test
+  public final void testCreateHmacDigest() {
+    String[] args = {"create", "--name=create-test", "--purpose=sign",
+        "--digest=sha384"};
+    KeyczarTool.main(args);
+    assertEquals(KeyPurpose.SIGN_AND_VERIFY, mock.purpose());
+    assertEquals(DefaultKeyType.HMAC_SHA384, mock.type());
+  }
+
   @Test
   public final void testAddKey() {
     assertEquals(3, mock.numKeys());
@@ -116,6 +127,18 @@ public class KeyczarToolTest extends TestCase {
     assertEquals(KeyStatus.ACTIVE, mock.getStatus(42));
   }
 
+  @Test
+  public final void testHashKeys() throws KeyczarException {
+    // Other commands leave the metadata format alone
+    KeyczarTool.main(new String[] {"promote", "--version=77"});
+    assertFalse(mock.getMetadata().contains("keyHashes"));
+    KeyczarTool.main(new String[] {"hashkeys"});
+    KeyMetadata metadata = KeyMetadata.read(mock.getMetadata());
+    for (KeyVersion version : metadata.getVersions()) {
+      assertNotNull(version.getKeyHashes());
+    }
+  }
+
   @Test
   public final void testDemote() {
     String[] args = {"demote", "--version=77"};
@@ -327,6 +350,90 @@ public class KeyczarToolTest extends TestCase {
     }
   }
 
+  @Test
+  public final void testPackAndUnpack() throws Exception {
+    KeyczarTool.setReader(null); // use real reader
+    String testKeyPath = "./testdata/aes";
+    File packed = File.createTempFile("keyczar", ".pack");
+    packed.deleteOnExit();
+    File unpacked = File.createTempFile("keyczar", "");
+    unpacked.delete();
+
+    KeyczarTool.main(new String[] {"pack", "--location=" + testKeyPath,
+        "--destination=" + packed.getPath()});
+    KeyczarFileReader original = new KeyczarFileReader(testKeyPath);
+    KeyczarPackedFileReader packedReader =
+        new KeyczarPackedFileReader(packed.getPath());
+    assertEquals(original.getMetadata(), packedReader.getMetadata());
+    assertEquals(original.getKey(1), packedReader.getKey(1));
+    assertEquals(original.getKey(), packedReader.getKey());
+    Crypter crypter = new Crypter(packedReader);
+    assertEquals("Pack me", crypter.decrypt(
+        new Crypter(testKeyPath).encrypt("Pack me")));
+
+    KeyczarTool.main(new String[] {"unpack", "--location=" + packed.getPath(),
+        "--destination=" + unpacked.getPath()});
+    KeyczarFileReader unpackedReader =
+        new KeyczarFileReader(unpacked.getPath());
+    assertEquals(original.getMetadata(), unpackedReader.getMetadata());
+    assertEquals(original.getKey(2), unpackedReader.getKey(2));
+    // Every file is restored byte for byte
+    File[] files = unpacked.listFiles();
+    assertEquals(3, files.length);
+    for (File file : files) {
+      assertTrue(Arrays.equals(
+          KeyczarFileReader.readFileBytes(
+              new File(testKeyPath, file.getName()).getPath()),
+          KeyczarFileReader.readFileBytes(file.getPath())));
+      file.delete();
+    }
+    unpacked.delete();
+  }
+
+  @Test
+  public final void testUnpackWritesUtf8() throws Exception {
+    MockKeyczarReader reader = new MockKeyczarReader("cl\u00e9 \u00fc\u20ac",
+        KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES);
+    reader.addKey(1, KeyStatus.PRIMARY);
+    File packed = File.createTempFile("keyczar", ".pack");
+    packed.deleteOnExit();
+    File unpacked = File.createTempFile("keyczar", "");
+    unpacked.delete();
+
+    KeyczarTool.setReader(reader);
+    KeyczarTool.main(new String[] {"pack",
+        "--destination=" + packed.getPath()});
+    KeyczarTool.main(new String[] {"unpack", "--location=" + packed.getPath(),
+        "--destination=" + unpacked.getPath()});
+    File meta = new File(unpacked, KeyczarFileReader.META_FILE);
+    assertTrue(Arrays.equals(reader.getMetadata().getBytes("UTF-8"),
+        KeyczarFileReader.readFileBytes(meta.getPath())));
+    for (File file : unpacked.listFiles()) {
+      file.delete();
+    }
+    unpacked.delete();
+  }
+
+  @Test
+  public final void testPackedFormatErrors() throws Exception {
+    File packed = File.createTempFile("keyczar", ".pack");
+    packed.deleteOnExit();
+    try {
+      new KeyczarPackedFileReader(packed.getPath());
+      fail("Read an empty packed file");
+    } catch (KeyczarException e) {
+      // Expected
+    }
+    new KeyczarPackedFileWriter(packed.getPath()).write(
+        new KeyczarFileReader("./testdata/aes"));
+    try {
+      new KeyczarPackedFileReader(packed.getPath()).getKey(100);
+      fail("Read a missing key version");
+    } catch (KeyczarException e) {
+      // Expected
+    }
+  }
+
   // TODO(mtomczak): Add tests for stdin and stdout support. Will need
   //                 to mock stdin and stdout in keytool.
   // TODO(swillden) Add export tests.
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keyczar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.keyczar.enums.KeyPurpose;
+import org.keyczar.enums.KeyStatus;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.interfaces.KeyczarReader;
+import org.keyczar.util.Base64Coder;
+
+/**
+ * Tests key sets that reload their keys from their reader.
+ */
+public class ReloadingTest extends TestCase {
+  private final String input = "This is some test data";
+  private MockKeyczarReader reader;
+
+  @Override
+  protected void setUp() throws Exception {
+    reader = new MockKeyczarReader("reloading",
+        KeyPurpose.DECRYPT_AND_ENCRYPT, DefaultKeyType.AES);
+    reader.addKey(1, KeyStatus.PRIMARY);
+  }
+
+  /**
+   * Demotes the current primary version and adds a new primary version.
+   */
+  private void rotate(int oldPrimary, int newPrimary) throws KeyczarException {
+    KeyMetadata kmd = KeyMetadata.read(reader.getMetadata());
+    kmd.getVersion(oldPrimary).setStatus(KeyStatus.ACTIVE);
+    reader.setMetadata(kmd);
+    reader.addKey(newPrimary, KeyStatus.PRIMARY);
+  }
+
+  @Test
+  public final void testReload() throws Exception {
+    ReloadingCrypter crypter = new ReloadingCrypter(reader);
+    String oldCiphertext = crypter.encrypt(input);
+    KeyczarKey oldPrimary = crypter.getPrimaryKey();
+    assertFalse(crypter.reload());
+    assertSame(oldPrimary, crypter.getPrimaryKey());
+
+    rotate(1, 2);
+    assertTrue(crypter.reload());
+    assertNotSame(oldPrimary, crypter.getPrimaryKey());
+    // The key of the old version is reused rather than parsed again
+    assertSame(oldPrimary, crypter.getKey(
+        Base64Coder.decodeWebSafe(oldCiphertext), 1)[0]);
+    String newCiphertext = crypter.encrypt(input);
+    assertFalse(oldCiphertext.substring(0, 6).equals(
+        newCiphertext.substring(0, 6)));
+    assertEquals(input, crypter.decrypt(oldCiphertext));
+    assertEquals(input, crypter.decrypt(newCiphertext));
+    assertTrue(crypter.toString().contains("\"versionNumber\":2"));
+    assertFalse(crypter.reload());
+  }
+
+  /**
+   * Records the key hashes of every version in the reader's metadata, so
+   * that their keys can be loaded lazily.
+   */
+  private void recordKeyHashes() throws KeyczarException {
+    GenericKeyczar keyczar = new GenericKeyczar(reader);
+    keyczar.recordKeyHashes();
+    reader.setMetadata(KeyMetadata.read(keyczar.toString()));
+  }
+
+  @Test
+  public final void testLazyReload() throws Exception {
+    String oldCiphertext = new Crypter(reader).encrypt(input);
+    rotate(1, 2);
+    recordKeyHashes();
+    final List<Integer> reads = new ArrayList<Integer>();
+    KeyczarReader countingReader = new KeyczarReader() {
+      @Override
+      public String getKey(int version) throws KeyczarException {
+        reads.add(version);
+        return reader.getKey(version);
+      }
+
+      @Override
+      public String getKey() throws KeyczarException {
+        return reader.getKey();
+      }
+
+      @Override
+      public String getMetadata() {
+        return reader.getMetadata();
+      }
+    };
+
+    ReloadingCrypter crypter = new ReloadingCrypter(countingReader, true);
+    assertEquals(Arrays.asList(2), reads);
+    rotate(2, 3);
+    recordKeyHashes();
+    assertTrue(crypter.reload());
+    // Only the new primary key is read; version 2 is reused and version 1
+    // is still deferred
+    assertEquals(Arrays.asList(2, 3), reads);
+    assertEquals(input, crypter.decrypt(oldCiphertext));
+    assertEquals(Arrays.asList(2, 3, 1), reads);
+    assertEquals(input, crypter.decrypt(oldCiphertext));
+    assertEquals(Arrays.asList(2, 3, 1), reads);
+  }
+
+  @Test
+  public final void testFailedReloadKeepsKeys() throws Exception {
+    ReloadingCrypter crypter = new ReloadingCrypter(reader);
+    KeyczarKey primary = crypter.getPrimaryKey();
+    // A second primary version makes the key set invalid
+    reader.addKey(2, KeyStatus.PRIMARY);
+    try {
+      crypter.reload();
+      fail("Reloaded a key set with two primary versions");
+    } catch (KeyczarException e) {
+      // Expected
+    }
+    assertSame(primary, crypter.getPrimaryKey());
+    assertEquals(input, crypter.decrypt(crypter.encrypt(input)));
+  }
+
+  @Test
+  public final void testScheduledReloads() throws Exception {
+    reader = new MockKeyczarReader("reloading", KeyPurpose.SIGN_AND_VERIFY,
+        DefaultKeyType.HMAC_SHA1);
+    reader.addKey(1, KeyStatus.PRIMARY);
+    ReloadingSigner signer = new ReloadingSigner(reader);
+    ReloadingVerifier verifier = new ReloadingVerifier(reader);
+    ScheduledExecutorService executor =
+        Executors.newSingleThreadScheduledExecutor();
+    try {
+      ScheduledFuture<?> signerReloads =
+          signer.scheduleReloads(executor, 10, TimeUnit.MILLISECONDS);
+      verifier.scheduleReloads(executor, 10, TimeUnit.MILLISECONDS);
+      KeyczarKey primary = signer.getPrimaryKey();
+      String oldSignature = signer.sign(input);
+      rotate(1, 2);
+
+      long deadline = System.currentTimeMillis() + 10000;
+      while (signer.getPrimaryKey() == primary
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertNotSame(primary, signer.getPrimaryKey());
+      signerReloads.cancel(false);
+
+      // The verifier picks up the new key on its own schedule
+      String newSignature = signer.sign(input);
+      while (!verifier.toString().contains("\"versionNumber\":2")
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue(verifier.verify(input, newSignature));
+      assertTrue(verifier.verify(input, oldSignature));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
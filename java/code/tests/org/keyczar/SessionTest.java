@@ -22,10 +22,14 @@ import org.apache.log4j.Logger;
 import org.junit.Test;
 import org.keyczar.exceptions.KeyczarException;
 import org.keyczar.util.Base64Coder;
+import org.keyczar.util.Clock;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tests Crypter class for encrypting and decrypting with RSA and AES.
@@ -168,4 +172,75 @@ public class SessionTest extends TestCase {
      decrypted = localCrypter.decrypt(encrypted);
      assertTrue(Arrays.equals(bigInput, decrypted));
   }
+
+  @Test
+  public final void testSessionCrypterCache() throws KeyczarException {
+    final long[] now = {0};
+    SessionCrypterCache cache =
+        new SessionCrypterCache(privateKeyDecrypter, 2, 1, TimeUnit.MINUTES);
+    cache.setClock(new Clock() {
+      @Override
+      public long now() {
+        return now[0];
+      }
+    });
+
+    SessionCrypter first = new SessionCrypter(publicKeyEncrypter);
+    byte[] ciphertext = first.encrypt(input.getBytes());
+    SessionCrypter cached = cache.get(first.getSessionMaterial());
+    assertEquals(input, new String(cached.decrypt(ciphertext)));
+    assertSame(cached, cache.get(first.getSessionMaterial().clone()));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+
+    // Filling the cache evicts the least recently used session
+    SessionCrypter second = new SessionCrypter(publicKeyEncrypter);
+    SessionCrypter third = new SessionCrypter(publicKeyEncrypter);
+    cache.get(second.getSessionMaterial());
+    cache.get(first.getSessionMaterial());
+    cache.get(third.getSessionMaterial());
+    assertEquals(2, cache.getSize());
+    assertEquals(1, cache.getEvictionCount());
+    assertSame(cached, cache.get(first.getSessionMaterial()));
+    assertEquals(3, cache.getHitCount());
+
+    // Sessions expire a minute after they were first decrypted
+    now[0] = TimeUnit.MINUTES.toMillis(1);
+    SessionCrypter rebuilt = cache.get(first.getSessionMaterial());
+    assertNotSame(cached, rebuilt);
+    assertEquals(input, new String(rebuilt.decrypt(ciphertext)));
+    assertEquals(2, cache.getExpirationCount());
+    assertEquals(1, cache.getSize());
+  }
+
+  @Test
+  public final void testSessionCrypterPool() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    SessionCrypterPool pool =
+        new SessionCrypterPool(publicKeyEncrypter, 2, executor);
+    // Tasks run in order, so this waits for the pool to fill
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {}
+    }).get();
+    assertEquals(2, pool.getReadyCount());
+
+    SessionCrypter first = pool.newSessionCrypter();
+    SessionCrypter second = pool.newSessionCrypter();
+    assertFalse(Arrays.equals(
+        first.getSessionMaterial(), second.getSessionMaterial()));
+    byte[] ciphertext = first.encrypt(input.getBytes());
+    SessionCrypter receiver =
+        new SessionCrypter(privateKeyDecrypter, first.getSessionMaterial());
+    assertEquals(input, new String(receiver.decrypt(ciphertext)));
+    assertEquals(0, pool.getMissCount());
+
+    // Once the executor is gone sessions are generated on demand
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    pool.newSessionCrypter();
+    pool.newSessionCrypter();
+    assertNotNull(pool.newSessionCrypter());
+    assertEquals(1, pool.getMissCount());
+  }
 }
@@ -19,6 +19,9 @@ package org.keyczar;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
@@ -27,6 +30,7 @@ import org.junit.Test;
 import org.keyczar.annotations.Experimental;
 import org.keyczar.exceptions.KeyczarException;
 import org.keyczar.util.Base64Coder;
+import org.keyczar.util.Clock;
 
 /**
  * Tests signed session encryption and decryption
@@ -103,6 +107,78 @@ public class SignedSessionTest extends TestCase {
     assertEquals(input, decrypted);
   }
   
+  @Test
+  public final void testManyMessagesPerSession() throws KeyczarException {
+    // HMAC signatures, so that this doesn't depend on attached DSA signing
+    sessionEncrypter = new SignedSessionEncrypter(publicKeyEncrypter,
+        new Signer(TEST_DATA + "/hmac"));
+    String sessionMaterialString = sessionEncrypter.newSession();
+    sessionDecrypter = new SignedSessionDecrypter(privateKeyDecrypter,
+        new Verifier(TEST_DATA + "/hmac"), sessionMaterialString);
+    for (int i = 0; i < 10; i++) {
+      String message = input + i;
+      assertEquals(message, new String(
+          sessionDecrypter.decrypt(sessionEncrypter.encrypt(message.getBytes()))));
+    }
+  }
+
+  @Test
+  public final void testSignedSessionDecrypterCache() throws KeyczarException {
+    final long[] now = {0};
+    sessionEncrypter = new SignedSessionEncrypter(publicKeyEncrypter,
+        new Signer(TEST_DATA + "/hmac"));
+    SignedSessionDecrypterCache cache = new SignedSessionDecrypterCache(
+        privateKeyDecrypter, new Verifier(TEST_DATA + "/hmac"), 2, 1,
+        TimeUnit.MINUTES);
+    cache.setClock(new Clock() {
+      @Override
+      public long now() {
+        return now[0];
+      }
+    });
+
+    String sessionMaterial = sessionEncrypter.newSession();
+    byte[] ciphertext = sessionEncrypter.encrypt(input.getBytes());
+    SignedSessionDecrypter cached = cache.get(sessionMaterial);
+    assertEquals(input, new String(cached.decrypt(ciphertext)));
+    assertSame(cached, cache.get(new String(sessionMaterial)));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+
+    // Sessions expire a minute after they were first decrypted
+    now[0] = TimeUnit.MINUTES.toMillis(1);
+    SignedSessionDecrypter rebuilt = cache.get(sessionMaterial);
+    assertNotSame(cached, rebuilt);
+    assertEquals(input, new String(rebuilt.decrypt(ciphertext)));
+    assertEquals(1, cache.getExpirationCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(1, cache.getSize());
+  }
+
+  @Test
+  public final void testPregeneratedSessions() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      sessionEncrypter = new SignedSessionEncrypter(publicKeyEncrypter,
+          new Signer(TEST_DATA + "/hmac"), 2, executor);
+      Verifier verifier = new Verifier(TEST_DATA + "/hmac");
+      String firstSession = sessionEncrypter.newSession();
+      byte[] ciphertext = sessionEncrypter.encrypt(input.getBytes());
+      String secondSession = sessionEncrypter.newSession();
+      assertFalse(firstSession.equals(secondSession));
+
+      sessionDecrypter = new SignedSessionDecrypter(privateKeyDecrypter,
+          verifier, firstSession);
+      assertEquals(input, new String(sessionDecrypter.decrypt(ciphertext)));
+      sessionDecrypter = new SignedSessionDecrypter(privateKeyDecrypter,
+          verifier, secondSession);
+      assertEquals(input, new String(sessionDecrypter.decrypt(
+          sessionEncrypter.encrypt(input.getBytes()))));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   @Test
   public final void testWrongSession() throws KeyczarException {
 	// gen a new session, to work with offsetting sessions.
@@ -19,15 +19,25 @@ package org.keyczar;
 
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 import junit.framework.TestCase;
 
 import org.apache.log4j.Logger;
 import org.junit.Test;
+import org.keyczar.enums.HmacDigest;
 import org.keyczar.exceptions.BadVersionException;
 import org.keyczar.exceptions.KeyNotFoundException;
 import org.keyczar.exceptions.KeyczarException;
 import org.keyczar.exceptions.ShortSignatureException;
+import org.keyczar.interfaces.SigningStream;
+import org.keyczar.util.Util;
 
 /**
  * Tests Signer class for signing and verifying with HMAC, RSA, and DSA.
@@ -216,4 +226,145 @@ public class SignerTest extends TestCase {
     sig[1] ^= 45;
      
   }
-}
\ No newline at end of file
+
+  @Test
+  public final void testDirectBuffers() throws KeyczarException {
+    for (String subDir : new String[] {"/hmac", "/dsa", "/rsa-sign"}) {
+      Signer signer = new Signer(TEST_DATA + subDir);
+      ByteBuffer data = ByteBuffer.allocateDirect(inputBytes.length);
+      data.put(inputBytes);
+      data.flip();
+      ByteBuffer sig = ByteBuffer.allocateDirect(signer.digestSize());
+      signer.sign(data.duplicate(), sig);
+      sig.flip();
+      assertTrue(signer.verify(data.duplicate(), sig.duplicate()));
+
+      sig.put(sig.limit() - 1, (byte) (sig.get(sig.limit() - 1) ^ 1));
+      assertFalse(signer.verify(data.duplicate(), sig.duplicate()));
+    }
+  }
+
+  @Test
+  public final void testLittleEndianBuffers() throws KeyczarException {
+    for (String subDir : new String[] {"/hmac", "/rsa-sign"}) {
+      Signer signer = new Signer(TEST_DATA + subDir);
+      ByteBuffer sig = ByteBuffer.wrap(signer.sign(inputBytes))
+          .order(ByteOrder.LITTLE_ENDIAN);
+      assertTrue(signer.verify(ByteBuffer.wrap(inputBytes), sig));
+    }
+  }
+
+  @Test
+  public final void testHmacStreamsShareKeyedMac() throws Exception {
+    byte[] keyBytes = Util.rand(32);
+    HmacKey key = new HmacKey(keyBytes);
+    Mac mac = Mac.getInstance("HMACSHA1");
+    mac.init(new SecretKeySpec(keyBytes, "HMACSHA1"));
+    byte[] expected = mac.doFinal(inputBytes);
+
+    // Every stream, and every use of a stream, computes the same MAC as a
+    // freshly keyed Mac
+    for (int i = 0; i < 3; i++) {
+      SigningStream stream = (SigningStream) key.createStream();
+      for (int j = 0; j < 3; j++) {
+        stream.initSign();
+        stream.updateSign(ByteBuffer.wrap(inputBytes));
+        ByteBuffer sig = ByteBuffer.allocate(stream.digestSize());
+        stream.sign(sig);
+        assertTrue(Arrays.equals(expected, sig.array()));
+      }
+    }
+  }
+
+  @Test
+  public final void testHmacSha2() throws Exception {
+    for (HmacDigest digest : HmacDigest.values()) {
+      byte[] keyBytes = Util.rand(digest.getSize());
+      HmacKey key = new HmacKey(keyBytes, digest, -1);
+      assertEquals(digest.getKeyType(), key.getType());
+      // Read back through the key set JSON
+      Signer signer = new Signer(new ImportedKeyReader(key));
+      byte[] signature = signer.sign(inputBytes);
+      assertEquals(Keyczar.HEADER_SIZE + digest.getSize(), signature.length);
+      assertTrue(signer.verify(inputBytes, signature));
+
+      Mac mac = Mac.getInstance(digest.getMacAlgorithm());
+      mac.init(new SecretKeySpec(keyBytes, digest.getMacAlgorithm()));
+      mac.update(inputBytes);
+      byte[] expected = mac.doFinal(Keyczar.FORMAT_BYTES);
+      assertTrue(Arrays.equals(expected, Arrays.copyOfRange(signature,
+          Keyczar.HEADER_SIZE, signature.length)));
+    }
+    // HMAC-SHA1 keys are written without the new fields
+    String sha1Json = new HmacKey(Util.rand(32)).toString();
+    assertFalse(sha1Json.contains("digest"));
+    assertFalse(sha1Json.contains("tagSize"));
+  }
+
+  @Test
+  public final void testTruncatedHmac() throws Exception {
+    HmacKey key = new HmacKey(Util.rand(32), HmacDigest.SHA256, 16);
+    HmacKey fullKey = new HmacKey(key.getEncoded(), HmacDigest.SHA256, -1);
+    assertEquals(16, HmacKey.read(key.toString()).getTagSize());
+
+    Signer signer = new Signer(new ImportedKeyReader(key));
+    byte[] signature = signer.sign(inputBytes);
+    assertEquals(Keyczar.HEADER_SIZE + 16, signature.length);
+    assertTrue(signer.verify(inputBytes, signature));
+    // The tag is the leading part of the full MAC
+    byte[] fullSignature =
+        new Signer(new ImportedKeyReader(fullKey)).sign(inputBytes);
+    assertTrue(Arrays.equals(signature,
+        Arrays.copyOf(fullSignature, signature.length)));
+
+    byte[] tampered = signature.clone();
+    tampered[tampered.length - 1] ^= 1;
+    assertFalse(signer.verify(inputBytes, tampered));
+    assertFalse(signer.verify(inputBytes, fullSignature));
+
+    for (int tagSize : new int[] {15, 33}) {
+      try {
+        new HmacKey(Util.rand(32), HmacDigest.SHA256, tagSize);
+        fail("Accepted tag size " + tagSize);
+      } catch (KeyczarException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public final void testTamperedHmacTagSize() throws Exception {
+    String json = new HmacKey(Util.rand(32), HmacDigest.SHA256, 16).toString();
+    assertTrue(json.contains("\"tagSize\":16"));
+    for (int tagSize : new int[] {0, 15, 33}) {
+      try {
+        HmacKey.read(json.replace("\"tagSize\":16", "\"tagSize\":" + tagSize));
+        fail("Read tag size " + tagSize);
+      } catch (KeyczarException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public final void testParallelLoading() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (String subDir : new String[] {"/hmac", "/dsa", "/rsa-sign"}) {
+        Signer signer = new Signer(
+            new KeyczarFileReader(TEST_DATA + subDir), executor);
+        // Loaded keys and metadata match loading one key at a time
+        assertEquals(new Signer(TEST_DATA + subDir).toString(),
+            signer.toString());
+        RandomAccessFile activeInput =
+            new RandomAccessFile(TEST_DATA + subDir + "/1.out", "r");
+        String activeSignature = activeInput.readLine();
+        activeInput.close();
+        assertTrue(signer.verify(input, activeSignature));
+        assertTrue(signer.verify(input, signer.sign(input)));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
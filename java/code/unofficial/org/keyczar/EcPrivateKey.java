@@ -74,7 +74,7 @@ public class EcPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
   }
 
   @Override
-  protected Stream getStream() throws KeyczarException {
+  protected Stream createStream() throws KeyczarException {
     return new EcSigningStream();
   }
 
@@ -141,7 +141,7 @@ public class EcPrivateKey extends KeyczarKey implements KeyczarPrivateKey {
         // Make sure we use our own impl; there may be other EC signature
         // generators...
         signature = Signature.getInstance(SIG_ALGORITHM, EcCore.NAME);
-        verifyingStream = (VerifyingStream) publicKey.getStream();
+        verifyingStream = (VerifyingStream) publicKey.createStream();
       } catch (GeneralSecurityException e) {
         throw new KeyczarException(e);
       }
@@ -79,7 +79,7 @@ public class EcPublicKey extends KeyczarPublicKey {
   }
   
   @Override
-  protected Stream getStream() throws KeyczarException {
+  protected Stream createStream() throws KeyczarException {
     return new EcVerifyingStream();
   }
 